@@ -21,6 +21,7 @@ package org.apache.sling.jcr.repoinit;
 import javax.jcr.Session;
 
 import java.util.List;
+import java.util.function.IntConsumer;
 
 import org.apache.sling.repoinit.parser.operations.Operation;
 import org.osgi.annotation.versioning.ProviderType;
@@ -32,4 +33,19 @@ import org.osgi.annotation.versioning.ProviderType;
 public interface JcrRepoInitOpsProcessor {
 
     void apply(Session session, List<Operation> ops);
+
+    /**
+     * Apply the operations like {@link #apply(Session, List)}, and report the progress of saved changes,
+     * so that a retry after a failure can resume with the first operation whose changes were not saved.
+     * <p>
+     * The default implementation does not report any progress, a retry then applies all operations again.
+     *
+     * @param session the session
+     * @param ops the operations
+     * @param checkpointListener receives the number of leading operations whose changes were saved
+     * @since 1.2.0
+     */
+    default void apply(Session session, List<Operation> ops, IntConsumer checkpointListener) {
+        apply(session, ops);
+    }
 }
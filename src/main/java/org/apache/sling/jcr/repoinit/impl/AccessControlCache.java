@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlManager;
+import org.apache.jackrabbit.api.security.authorization.PrivilegeCollection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches the privileges and restrictions of access control statements of a {@link SessionContext},
+ * as converted for the access control manager.
+ */
+class AccessControlCache {
+
+    private final Supplier<JackrabbitAccessControlManager> acMgr;
+
+    // privilege collections by their sorted, comma separated privilege names
+    private final Map<String, PrivilegeCollection> privilegeCollections = new HashMap<>();
+    // converted restriction clauses, see AclUtil.createLocalRestrictions
+    private final Map<List<Object>, AclUtil.LocalRestrictions> localRestrictions = new HashMap<>();
+
+    AccessControlCache(@NotNull Supplier<JackrabbitAccessControlManager> acMgr) {
+        this.acMgr = acMgr;
+    }
+
+    /**
+     * @see SessionContext#privilegeCollectionFromNames(String...)
+     */
+    @NotNull
+    PrivilegeCollection privilegeCollectionFromNames(@NotNull String... privilegeNames) throws RepositoryException {
+        final String[] sorted = privilegeNames.clone();
+        Arrays.sort(sorted);
+        final String key = String.join(",", sorted);
+        PrivilegeCollection collection = privilegeCollections.get(key);
+        if (collection == null) {
+            collection = acMgr.get().privilegeCollectionFromNames(privilegeNames);
+            privilegeCollections.put(key, collection);
+        }
+        return collection;
+    }
+
+    /**
+     * Forget the cached privilege collections, to be called when privileges are registered.
+     */
+    void privilegesChanged() {
+        privilegeCollections.clear();
+    }
+
+    /**
+     * @param key the restriction clauses, as built by {@code AclUtil.createLocalRestrictions}
+     * @return the converted restrictions, or {@code null} if they were not converted yet
+     */
+    @Nullable
+    AclUtil.LocalRestrictions getLocalRestrictions(@NotNull List<Object> key) {
+        return localRestrictions.get(key);
+    }
+
+    /**
+     * @param key the restriction clauses, as built by {@code AclUtil.createLocalRestrictions}
+     * @param restrictions the converted restrictions
+     */
+    void putLocalRestrictions(@NotNull List<Object> key, @NotNull AclUtil.LocalRestrictions restrictions) {
+        localRestrictions.put(key, restrictions);
+    }
+}
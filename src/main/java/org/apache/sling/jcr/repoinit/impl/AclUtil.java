@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Predicate;
 
 import org.apache.jackrabbit.api.security.JackrabbitAccessControlEntry;
@@ -89,13 +90,37 @@ public class AclUtil {
 
     /**
      * Converts RestrictionClauses to structure consumable by
-     * jackrabbit
-     * @param list
-     * @param jacl
-     * @param s
-     * @return
-     * @throws RepositoryException
+     * jackrabbit. The result is cached in the session context, keyed by the clauses and the
+     * restriction type definitions of the access control list, so identical clauses are converted once per run.
+     * @param list the restriction clauses
+     * @param jacl the access control list which defines the restriction types
+     * @param context the session context
+     * @return the (immutable) restrictions
+     * @throws RepositoryException if a restriction type cannot be determined or a restriction value cannot be created
      */
+    static LocalRestrictions createLocalRestrictions(
+            List<RestrictionClause> list, JackrabbitAccessControlList jacl, SessionContext context)
+            throws RepositoryException {
+        if (list == null || list.isEmpty()) {
+            return LocalRestrictions.EMPTY;
+        }
+        final List<Object> key = new ArrayList<>(list.size());
+        for (RestrictionClause rc : list) {
+            String restrictionName = rc.getName();
+            key.add(Arrays.asList(
+                    restrictionName,
+                    jacl.getRestrictionType(restrictionName),
+                    jacl.isMultiValueRestriction(restrictionName),
+                    rc.getValues()));
+        }
+        LocalRestrictions cached = context.getAccessControlCache().getLocalRestrictions(key);
+        if (cached == null) {
+            cached = createLocalRestrictions(list, jacl, context.getSession());
+            context.getAccessControlCache().putLocalRestrictions(key, cached);
+        }
+        return cached;
+    }
+
     private static LocalRestrictions createLocalRestrictions(
             List<RestrictionClause> list, JackrabbitAccessControlList jacl, Session s) throws RepositoryException {
         Map<String, Value> restrictions = new HashMap<>();
@@ -151,7 +176,9 @@ public class AclUtil {
             List<String> options)
             throws RepositoryException {
 
-        for (String jcrPath : getJcrPaths(context.getSession(), paths)) {
+        // the paths might have been created by batched operations, which need to be persisted first
+        context.saveBatchedChanges();
+        for (String jcrPath : getJcrPaths(context, paths)) {
             if (jcrPath != null && !context.getSession().nodeExists(jcrPath)) {
                 throw new PathNotFoundException("Cannot set ACL on non-existent path " + jcrPath);
             }
@@ -169,16 +196,14 @@ public class AclUtil {
             List<String> options)
             throws RepositoryException {
 
-        AccessControlManager acMgr = context.getAccessControlManager();
-
         final String[] privArray = privileges.toArray(new String[0]);
 
-        JackrabbitAccessControlList acl = getAccessControlList(acMgr, jcrPath, true);
+        JackrabbitAccessControlList acl = getAccessControlList(context, jcrPath, true);
         checkState(acl != null, "No JackrabbitAccessControlList available for path {0}", jcrPath);
 
-        LocalRestrictions localRestrictions = createLocalRestrictions(restrictionClauses, acl, context.getSession());
+        LocalRestrictions localRestrictions = createLocalRestrictions(restrictionClauses, acl, context);
 
-        AccessControlEntry[] existingAces = acl.getAccessControlEntries();
+        EntryIndex existingAces = getEntryIndex(context, jcrPath, acl);
 
         boolean changed = false;
         final boolean ignoreMissingPrincipal = Optional.ofNullable(options)
@@ -188,23 +213,25 @@ public class AclUtil {
             final Principal principal = getPrincipal(context, name, ignoreMissingPrincipal);
             LocalAccessControlEntry newAce =
                     new LocalAccessControlEntry(context, principal, privArray, isAllow, localRestrictions);
-            if (contains(existingAces, newAce)) {
+            if (existingAces.contains(newAce)) {
                 LOG.info(
                         "Not adding {} to path {} since an equivalent access control entry already exists",
                         newAce,
                         jcrPath);
                 continue;
             }
-            acl.addEntry(
+            if (acl.addEntry(
                     newAce.principal,
                     newAce.getPrivilegeCollection().getPrivileges(),
                     newAce.isAllow,
                     newAce.restrictions.getRestrictions(),
-                    newAce.restrictions.getMVRestrictions());
-            changed = true;
+                    newAce.restrictions.getMVRestrictions())) {
+                existingAces.entriesModified(newAce.principal.getName());
+                changed = true;
+            }
         }
         if (changed) {
-            acMgr.setPolicy(jcrPath, acl);
+            setAccessControlList(context, jcrPath, acl);
         }
     }
 
@@ -215,7 +242,7 @@ public class AclUtil {
         if (principal == null) {
             // backwards compatibility: fallback to original code treating principal name as authorizable ID (see
             // SLING-8604)
-            final Authorizable authorizable = UserUtil.getAuthorizable(context.getSession(), name);
+            final Authorizable authorizable = context.getAuthorizable(name);
             if (!ignoreMissingPrincipal) {
                 checkState(authorizable != null, "Authorizable not found: {0}", name);
                 principal = authorizable.getPrincipal();
@@ -241,6 +268,7 @@ public class AclUtil {
      */
     public static void removePolicy(@NotNull SessionContext context, @NotNull final String principalName)
             throws RepositoryException {
+        context.flushAcls();
         Principal principal = context.getPrincipal(principalName);
         if (principal == null) {
             LOG.info("Principal {} does not exist.", principalName);
@@ -268,8 +296,9 @@ public class AclUtil {
      */
     public static void removePolicies(@NotNull SessionContext context, @NotNull List<String> paths)
             throws RepositoryException {
+        context.flushAcls();
         AccessControlManager acMgr = context.getAccessControlManager();
-        for (String jcrPath : getJcrPaths(context.session, paths)) {
+        for (String jcrPath : getJcrPaths(context, paths)) {
             if (!isValidPath(context.getSession(), jcrPath)) {
                 LOG.info("Cannot remove ACL; no node at {} ", jcrPath);
                 continue;
@@ -288,12 +317,11 @@ public class AclUtil {
             @NotNull SessionContext context, @NotNull List<String> principals, @NotNull List<String> paths)
             throws RepositoryException {
         Set<String> principalNames = new HashSet<>(principals);
-        AccessControlManager acMgr = context.getAccessControlManager();
-        for (String jcrPath : getJcrPaths(context.getSession(), paths)) {
+        for (String jcrPath : getJcrPaths(context, paths)) {
             if (!isValidPath(context.getSession(), jcrPath)) {
                 LOG.info("Cannot remove access control entries on non-existent path {}", jcrPath);
             } else {
-                JackrabbitAccessControlList acl = getAccessControlList(acMgr, jcrPath, false);
+                JackrabbitAccessControlList acl = getAccessControlList(context, jcrPath, false);
                 if (acl != null) {
                     boolean modified = false;
                     for (AccessControlEntry ace : acl.getAccessControlEntries()) {
@@ -303,7 +331,8 @@ public class AclUtil {
                         }
                     }
                     if (modified) {
-                        acMgr.setPolicy(jcrPath, acl);
+                        entriesModified(context, jcrPath, principalNames);
+                        setAccessControlList(context, jcrPath, acl);
                     }
                 } else {
                     LOG.info(
@@ -324,16 +353,15 @@ public class AclUtil {
             List<RestrictionClause> restrictionClauses)
             throws RepositoryException {
         Set<String> principalNames = new HashSet<>(principals);
-        AccessControlManager acMgr = context.getAccessControlManager();
-        for (String jcrPath : getJcrPaths(context.getSession(), paths)) {
+        for (String jcrPath : getJcrPaths(context, paths)) {
             if (!isValidPath(context.getSession(), jcrPath)) {
                 LOG.info("Cannot remove access control entries on non-existent path {}", jcrPath);
             } else {
-                JackrabbitAccessControlList acl = getAccessControlList(acMgr, jcrPath, false);
+                JackrabbitAccessControlList acl = getAccessControlList(context, jcrPath, false);
                 if (acl != null) {
                     boolean modified = false;
 
-                    LocalRestrictions restr = createLocalRestrictions(restrictionClauses, acl, context.getSession());
+                    LocalRestrictions restr = createLocalRestrictions(restrictionClauses, acl, context);
                     for (AccessControlEntry ace : acl.getAccessControlEntries()) {
                         Principal principal = ace.getPrincipal();
                         if (!principalNames.contains(principal.getName())) {
@@ -347,7 +375,8 @@ public class AclUtil {
                         }
                     }
                     if (modified) {
-                        acMgr.setPolicy(jcrPath, acl);
+                        entriesModified(context, jcrPath, principalNames);
+                        setAccessControlList(context, jcrPath, acl);
                     } else {
                         LOG.info(
                                 "No matching access control entry found to remove for principals {} at {}. Expected entry with isAllow={}, privileges={}, restrictions={}",
@@ -387,7 +416,7 @@ public class AclUtil {
         boolean modified = false;
         for (AclLine line : lines) {
             AclLine.Action action = line.getAction();
-            List<String> jcrPaths = getJcrPaths(context.getSession(), line.getProperty(PROP_PATHS));
+            List<String> jcrPaths = getJcrPaths(context, line.getProperty(PROP_PATHS));
             if (action == AclLine.Action.DENY) {
                 throw new AccessControlException("PrincipalAccessControlList doesn't support 'deny' entries.");
             } else if (action == AclLine.Action.REMOVE) {
@@ -416,7 +445,7 @@ public class AclUtil {
                         }
                     } else {
                         final LocalRestrictions restrictions =
-                                createLocalRestrictions(line.getRestrictions(), acl, context.getSession());
+                                createLocalRestrictions(line.getRestrictions(), acl, context);
                         final boolean added = acl.addEntry(
                                 effectivePath,
                                 context.privilegeCollectionFromNames(privilegeNames)
@@ -445,6 +474,7 @@ public class AclUtil {
     public static void removePrincipalEntries(
             @NotNull SessionContext context, String principalName, Collection<AclLine> lines)
             throws RepositoryException {
+        context.flushAcls();
         final JackrabbitAccessControlManager acMgr = context.getAccessControlManager();
         Principal principal = context.getPrincipalWithSave(principalName);
         checkState(principal != null, PRINCIPAL_NOT_FOUND_PATTERN, principalName);
@@ -452,8 +482,8 @@ public class AclUtil {
         final PrincipalAccessControlList acl = getPrincipalAccessControlList(acMgr, principal, true);
         boolean modified = false;
         for (AclLine line : lines) {
-            List<String> jcrPaths = getJcrPaths(context.getSession(), line.getProperty(PROP_PATHS));
-            LocalRestrictions restr = createLocalRestrictions(line.getRestrictions(), acl, context.getSession());
+            List<String> jcrPaths = getJcrPaths(context, line.getProperty(PROP_PATHS));
+            LocalRestrictions restr = createLocalRestrictions(line.getRestrictions(), acl, context);
             List<String> privNames = line.getProperty(PROP_PRIVILEGES);
             Predicate<PrincipalAccessControlList.Entry> predicate = entry -> {
                 if (!jcrPaths.contains(entry.getEffectivePath())) {
@@ -493,6 +523,7 @@ public class AclUtil {
      */
     public static void removePrincipalPolicy(@NotNull SessionContext context, @NotNull String principalName)
             throws RepositoryException {
+        context.flushAcls();
         Principal principal = context.getPrincipal(principalName);
         if (principal == null) {
             LOG.info("Cannot remove principal-based ACL. Principal {} does not exist.", principalName);
@@ -521,7 +552,7 @@ public class AclUtil {
      * @throws RepositoryException
      */
     @Nullable
-    private static JackrabbitAccessControlList getAccessControlList(
+    static JackrabbitAccessControlList getAccessControlList(
             @NotNull AccessControlManager acMgr, @Nullable String path, boolean includeApplicable)
             throws RepositoryException {
         if (includeApplicable) {
@@ -536,6 +567,60 @@ public class AclUtil {
         }
     }
 
+    /**
+     * Same as {@link #getAccessControlList(AccessControlManager, String, boolean)}, but uses the
+     * working set of the context if enabled.
+     */
+    @Nullable
+    private static JackrabbitAccessControlList getAccessControlList(
+            @NotNull SessionContext context, @Nullable String path, boolean includeApplicable)
+            throws RepositoryException {
+        final AclWorkingSet workingSet = context.getAclWorkingSet();
+        if (workingSet == null) {
+            return getAccessControlList(context.getAccessControlManager(), path, includeApplicable);
+        }
+        return workingSet.get(context.getAccessControlManager(), path, includeApplicable);
+    }
+
+    /**
+     * Write the modified access control list of a path, or defer the write to the next flush of the
+     * working set of the context if enabled.
+     */
+    private static void setAccessControlList(
+            @NotNull SessionContext context, @Nullable String path, @NotNull JackrabbitAccessControlList acl)
+            throws RepositoryException {
+        final AclWorkingSet workingSet = context.getAclWorkingSet();
+        if (workingSet == null) {
+            context.getAccessControlManager().setPolicy(path, acl);
+        } else {
+            workingSet.setModified(path, acl);
+        }
+    }
+
+    /**
+     * @return the index of the entries of the access control list of a path, which is kept with the list
+     * in the working set of the context if enabled
+     */
+    @NotNull
+    private static EntryIndex getEntryIndex(
+            @NotNull SessionContext context, @Nullable String path, @NotNull JackrabbitAccessControlList acl)
+            throws RepositoryException {
+        final AclWorkingSet workingSet = context.getAclWorkingSet();
+        return workingSet == null ? new EntryIndex(acl) : workingSet.getEntryIndex(path, acl);
+    }
+
+    /**
+     * Update the index of the entries of the access control list of a path, if it is kept in the working set,
+     * after entries of the given principals were removed.
+     */
+    private static void entriesModified(
+            @NotNull SessionContext context, @Nullable String path, @NotNull Collection<String> principalNames) {
+        final AclWorkingSet workingSet = context.getAclWorkingSet();
+        if (workingSet != null) {
+            workingSet.entriesModified(path, principalNames);
+        }
+    }
+
     @Nullable
     private static PrincipalAccessControlList getPrincipalAccessControlList(
             @NotNull JackrabbitAccessControlManager acMgr, @NotNull Principal principal, boolean includeApplicable)
@@ -581,7 +666,7 @@ public class AclUtil {
     }
 
     @NotNull
-    private static List<String> getJcrPaths(@NotNull Session session, @NotNull List<String> paths)
+    private static List<String> getJcrPaths(@NotNull SessionContext context, @NotNull List<String> paths)
             throws RepositoryException {
         List<String> jcrPaths = new ArrayList<>(paths.size());
         for (String path : paths) {
@@ -591,7 +676,7 @@ public class AclUtil {
                 int lastHashIndex = path.lastIndexOf(SUBTREE_DELIMINATOR);
                 checkState(lastHashIndex > -1, "Invalid format of home path: # deliminator expected.");
                 String subTreePath = path.substring(lastHashIndex + 1);
-                for (String aPath : getAuthorizablePaths(session, path.substring(PATH_HOME.length(), lastHashIndex))) {
+                for (String aPath : getAuthorizablePaths(context, path.substring(PATH_HOME.length(), lastHashIndex))) {
                     jcrPaths.add(aPath + subTreePath);
                 }
             } else {
@@ -602,11 +687,11 @@ public class AclUtil {
     }
 
     @NotNull
-    private static Iterable<String> getAuthorizablePaths(@NotNull Session session, @NotNull String ids)
+    private static Iterable<String> getAuthorizablePaths(@NotNull SessionContext context, @NotNull String ids)
             throws RepositoryException {
         List<String> paths = new ArrayList<>();
         for (String id : Text.explode(ids, ID_DELIMINATOR)) {
-            Authorizable a = UserUtil.getAuthorizable(session, id);
+            Authorizable a = context.getAuthorizable(id);
             if (a == null) {
                 throw new PathNotFoundException("Cannot resolve path of user/group with id '" + id + "'.");
             }
@@ -630,19 +715,18 @@ public class AclUtil {
                     absPath);
             return true;
         }
-        for (AccessControlPolicy policy : context.getAccessControlManager().getPolicies(absPath)) {
-            if (policy instanceof JackrabbitAccessControlList) {
-                LocalRestrictions lr = createLocalRestrictions(
-                        restrictionList, ((JackrabbitAccessControlList) policy), context.getSession());
-                LocalAccessControlEntry newEntry =
-                        new LocalAccessControlEntry(context, principal, privilegeNames, isAllow, lr);
-                if (contains(((JackrabbitAccessControlList) policy).getAccessControlEntries(), newEntry)) {
-                    LOG.info(
-                            "Equivalent path-based entry exists for principal {} and effective path {} ",
-                            newEntry.principal.getName(),
-                            absPath);
-                    return true;
-                }
+        // includes the entries which are pending in the working set of the context
+        final JackrabbitAccessControlList acl = getAccessControlList(context, absPath, false);
+        if (acl != null) {
+            LocalRestrictions lr = createLocalRestrictions(restrictionList, acl, context);
+            LocalAccessControlEntry newEntry =
+                    new LocalAccessControlEntry(context, principal, privilegeNames, isAllow, lr);
+            if (getEntryIndex(context, absPath, acl).contains(newEntry)) {
+                LOG.info(
+                        "Equivalent path-based entry exists for principal {} and effective path {} ",
+                        newEntry.principal.getName(),
+                        absPath);
+                return true;
             }
         }
         return false;
@@ -651,12 +735,8 @@ public class AclUtil {
     // visible for testing
     static boolean contains(AccessControlEntry[] existingAces, LocalAccessControlEntry newAce)
             throws RepositoryException {
-        for (int i = 0; i < existingAces.length; i++) {
-            JackrabbitAccessControlEntry existingEntry = (JackrabbitAccessControlEntry) existingAces[i];
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Comparing {} with {}", newAce, toString(existingEntry));
-            }
-            if (newAce.isContainedIn(existingEntry)) {
+        for (AccessControlEntry ace : existingAces) {
+            if (newAce.isContainedIn((JackrabbitAccessControlEntry) ace)) {
                 return true;
             }
         }
@@ -759,15 +839,7 @@ public class AclUtil {
             // total (multivalue and simple)  number of restrictions should be same
             if (jace.getRestrictionNames().length == (restrictions.size())) {
                 for (String rn : jace.getRestrictionNames()) {
-                    Value[] oldValues = jace.getRestrictions(rn);
-                    Value[] newValues = restrictions.getRestrictions().get(rn) != null
-                            ? new Value[] {restrictions.getRestrictions().get(rn)}
-                            : restrictions.getMVRestrictions().get(rn);
-                    if ((newValues == null || newValues.length == 0) && (oldValues == null || oldValues.length == 0)) {
-                        continue;
-                    }
-
-                    if (!compareValues(newValues, oldValues)) {
+                    if (!restrictions.sameValues(rn, jace.getRestrictions(rn))) {
                         return false;
                     }
                 }
@@ -796,22 +868,144 @@ public class AclUtil {
         }
     }
 
+    /**
+     * Index of the entries of an access control list, which limits the equivalence check of a new entry
+     * to the existing entries with the same principal name, allow/deny flag and restriction signature.
+     * <p>
+     * The restriction signature is the sorted set of names of the restrictions which have values.
+     * Existing entries with a restriction without values can be equivalent to entries with other
+     * restriction names (see {@link LocalAccessControlEntry#sameRestrictions(JackrabbitAccessControlEntry)}),
+     * these are therefore compared with every new entry of the same principal and allow/deny flag.
+     * <p>
+     * Adding an entry to the list can merge it with the existing entries of its principal, or remove its
+     * privileges from them, so the entries of a principal are indexed again after they were modified.
+     */
+    static class EntryIndex {
+
+        private static final String ANY_RESTRICTIONS = "*";
+
+        private final JackrabbitAccessControlList acl;
+
+        // by principal name, the entries by allow/deny flag and restriction signature
+        private final Map<String, Map<String, List<JackrabbitAccessControlEntry>>> entries = new HashMap<>();
+
+        private final Set<String> modifiedPrincipals = new HashSet<>();
+
+        EntryIndex(JackrabbitAccessControlList acl) throws RepositoryException {
+            this.acl = acl;
+            for (AccessControlEntry ace : acl.getAccessControlEntries()) {
+                add((JackrabbitAccessControlEntry) ace);
+            }
+        }
+
+        boolean contains(LocalAccessControlEntry newAce) throws RepositoryException {
+            if (newAce.principal == null) {
+                return false;
+            }
+            final String principalName = newAce.principal.getName();
+            if (modifiedPrincipals.remove(principalName)) {
+                entries.remove(principalName);
+                for (AccessControlEntry ace : acl.getAccessControlEntries()) {
+                    if (principalName.equals(ace.getPrincipal().getName())) {
+                        add((JackrabbitAccessControlEntry) ace);
+                    }
+                }
+            }
+            final Map<String, List<JackrabbitAccessControlEntry>> principalEntries = entries.get(principalName);
+            if (principalEntries == null) {
+                return false;
+            }
+            final String flag = flag(newAce.isAllow);
+            return contains(principalEntries.get(flag + newAce.restrictions.signature()), newAce)
+                    || contains(principalEntries.get(flag + ANY_RESTRICTIONS), newAce);
+        }
+
+        /**
+         * Index the entries of a principal again before the next lookup of one of its entries.
+         *
+         * @param principalName the name of the principal whose entries were added or removed
+         */
+        void entriesModified(String principalName) {
+            modifiedPrincipals.add(principalName);
+        }
+
+        private void add(JackrabbitAccessControlEntry entry) throws RepositoryException {
+            entries.computeIfAbsent(entry.getPrincipal().getName(), k -> new HashMap<>())
+                    .computeIfAbsent(key(entry), k -> new ArrayList<>())
+                    .add(entry);
+        }
+
+        private static boolean contains(List<JackrabbitAccessControlEntry> candidates, LocalAccessControlEntry newAce)
+                throws RepositoryException {
+            if (candidates != null) {
+                for (JackrabbitAccessControlEntry existingEntry : candidates) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Comparing {} with {}", newAce, AclUtil.toString(existingEntry));
+                    }
+                    if (newAce.isContainedIn(existingEntry)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static String key(JackrabbitAccessControlEntry entry) throws RepositoryException {
+            Set<String> names = new TreeSet<>();
+            for (String rn : entry.getRestrictionNames()) {
+                Value[] values = entry.getRestrictions(rn);
+                if (values == null || values.length == 0) {
+                    return flag(entry.isAllow()) + ANY_RESTRICTIONS;
+                }
+                names.add(rn);
+            }
+            return flag(entry.isAllow()) + names;
+        }
+
+        private static String flag(boolean isAllow) {
+            return isAllow ? "allow:" : "deny:";
+        }
+    }
+
     /**
      * Helper class to store both restrictions and multi value restrictions
-     * in ready to consume structure expected by jackrabbit
+     * in ready to consume structure expected by jackrabbit.
+     * <p>
+     * Instances are immutable, as they are shared by all entries created from the same restriction clauses.
      */
-    private static class LocalRestrictions {
-        private Map<String, Value> restrictions;
-        private Map<String, Value[]> mvRestrictions;
+    static class LocalRestrictions {
+
+        static final LocalRestrictions EMPTY = new LocalRestrictions();
+
+        private final Map<String, Value> restrictions;
+        private final Map<String, Value[]> mvRestrictions;
+        // the values of both kinds of restrictions, for the comparison with existing entries
+        private final Map<String, Set<Value>> valueSets = new HashMap<>();
+        private final Map<String, Integer> valueCounts = new HashMap<>();
+        private final String signature;
 
         public LocalRestrictions() {
-            restrictions = new HashMap<>();
-            mvRestrictions = new HashMap<>();
+            this(null, null);
         }
 
         public LocalRestrictions(Map<String, Value> restrictions, Map<String, Value[]> mvRestrictions) {
-            this.restrictions = restrictions != null ? restrictions : new HashMap<>();
-            this.mvRestrictions = mvRestrictions != null ? mvRestrictions : new HashMap<>();
+            this.restrictions = Collections.unmodifiableMap(restrictions != null ? restrictions : new HashMap<>());
+            this.mvRestrictions =
+                    Collections.unmodifiableMap(mvRestrictions != null ? mvRestrictions : new HashMap<>());
+            Set<String> names = new TreeSet<>();
+            for (Map.Entry<String, Value> r : this.restrictions.entrySet()) {
+                valueSets.put(r.getKey(), Collections.singleton(r.getValue()));
+                valueCounts.put(r.getKey(), 1);
+                names.add(r.getKey());
+            }
+            for (Map.Entry<String, Value[]> mv : this.mvRestrictions.entrySet()) {
+                if (mv.getValue() != null && mv.getValue().length > 0) {
+                    valueSets.put(mv.getKey(), new HashSet<>(Arrays.asList(mv.getValue())));
+                    valueCounts.put(mv.getKey(), mv.getValue().length);
+                    names.add(mv.getKey());
+                }
+            }
+            this.signature = names.toString();
         }
 
         public Map<String, Value> getRestrictions() {
@@ -825,5 +1019,30 @@ public class AclUtil {
         public int size() {
             return this.restrictions.size() + this.mvRestrictions.size();
         }
+
+        /**
+         * @return the sorted set of names of the restrictions which have values, as used by {@link EntryIndex}
+         */
+        public String signature() {
+            return signature;
+        }
+
+        /**
+         * Same as {@link AclUtil#compareValues(Value[], Value[])} with the values of the named restriction,
+         * except that two empty sets of values are considered equal.
+         *
+         * @param name the restriction name
+         * @param otherValues the values of the restriction of an existing entry
+         * @return true if the values are the same, in whatever order
+         */
+        boolean sameValues(String name, Value[] otherValues) {
+            Set<Value> values = valueSets.get(name);
+            if (values == null) {
+                return otherValues == null || otherValues.length == 0;
+            }
+            return otherValues != null
+                    && otherValues.length == valueCounts.get(name)
+                    && values.equals(new HashSet<>(Arrays.asList(otherValues)));
+        }
     }
 }
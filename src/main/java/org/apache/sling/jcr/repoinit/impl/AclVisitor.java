@@ -19,7 +19,6 @@
 package org.apache.sling.jcr.repoinit.impl;
 
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 
 import java.util.Collections;
 import java.util.List;
@@ -29,6 +28,7 @@ import org.apache.sling.repoinit.parser.operations.DeleteAclPaths;
 import org.apache.sling.repoinit.parser.operations.DeleteAclPrincipalBased;
 import org.apache.sling.repoinit.parser.operations.DeleteAclPrincipals;
 import org.apache.sling.repoinit.parser.operations.EnsureAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.Operation;
 import org.apache.sling.repoinit.parser.operations.RemoveAcePaths;
 import org.apache.sling.repoinit.parser.operations.RemoveAcePrincipalBased;
 import org.apache.sling.repoinit.parser.operations.RemoveAcePrincipals;
@@ -55,27 +55,34 @@ class AclVisitor extends DoNothingVisitor {
      */
     public static final String OPTION_IGNORE_MISSING_PRINCIPAL = "ignoreMissingPrincipal";
 
-    private final SessionContext context;
-
     private enum Instruction {
         SET,
         REMOVE
     }
 
     /**
-     * Create a visitor using the supplied JCR Session.
+     * Create a visitor using the supplied session context.
      *
-     * @param s must have sufficient rights to create users
+     * @param context the session context, the session must have sufficient rights to create users
      *          and set ACLs.
      */
-    public AclVisitor(Session s) {
-        super(s);
-        context = new SessionContext(s);
+    public AclVisitor(SessionContext context) {
+        super(context);
     }
 
     private void handleAclLine(
-            AclLine line, Instruction instruction, List<String> principals, List<String> paths, List<String> options)
+            Operation statement,
+            AclLine line,
+            Instruction instruction,
+            List<String> principals,
+            List<String> paths,
+            List<String> options)
             throws RepositoryException {
+        final AclWorkingSet workingSet = context.getAclWorkingSet();
+        if (workingSet != null) {
+            // modifications which are kept in the working set are reported for their statement if writing them fails
+            workingSet.setStatement(statement);
+        }
         final AclLine.Action action = line.getAction();
         if (action == AclLine.Action.REMOVE) {
             report("remove not supported. use 'remove acl' instead.");
@@ -105,7 +112,7 @@ class AclVisitor extends DoNothingVisitor {
             // ... which needs to be represented with the path ":repository"
             paths = isRepositoryAcl ? Collections.singletonList(AclLine.PATH_REPOSITORY) : paths;
             try {
-                handleAclLine(line, Instruction.SET, principals, paths, s.getOptions());
+                handleAclLine(s, line, Instruction.SET, principals, paths, s.getOptions());
             } catch (Exception e) {
                 if (isRepositoryAcl) {
                     report(e, "Failed to set repository level ACL (" + e + ") " + line);
@@ -121,7 +128,7 @@ class AclVisitor extends DoNothingVisitor {
         final List<String> paths = s.getPaths();
         for (AclLine line : s.getLines()) {
             try {
-                handleAclLine(line, Instruction.SET, line.getProperty(PROP_PRINCIPALS), paths, s.getOptions());
+                handleAclLine(s, line, Instruction.SET, line.getProperty(PROP_PRINCIPALS), paths, s.getOptions());
             } catch (Exception e) {
                 report(e, "Failed to set ACL (" + e + ") " + line);
             }
@@ -157,7 +164,7 @@ class AclVisitor extends DoNothingVisitor {
         final List<String> principals = s.getPrincipals();
         for (AclLine line : s.getLines()) {
             try {
-                handleAclLine(line, Instruction.REMOVE, principals, line.getProperty(PROP_PATHS), s.getOptions());
+                handleAclLine(s, line, Instruction.REMOVE, principals, line.getProperty(PROP_PATHS), s.getOptions());
             } catch (Exception e) {
                 report(e, "Failed to remove access control entries (" + e.toString() + ") " + line);
             }
@@ -169,7 +176,7 @@ class AclVisitor extends DoNothingVisitor {
         final List<String> paths = s.getPaths();
         for (AclLine line : s.getLines()) {
             try {
-                handleAclLine(line, Instruction.REMOVE, line.getProperty(PROP_PRINCIPALS), paths, s.getOptions());
+                handleAclLine(s, line, Instruction.REMOVE, line.getProperty(PROP_PRINCIPALS), paths, s.getOptions());
             } catch (Exception e) {
                 report(e, "Failed to remove access control entries (" + e.toString() + ") " + line);
             }
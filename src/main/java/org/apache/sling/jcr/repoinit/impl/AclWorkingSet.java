@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.security.AccessControlManager;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the path-based access control lists modified by a sequence of ACL statements in memory,
+ * so that each list is loaded once and each modified list is written with a single
+ * {@code setPolicy} call when the working set is flushed. The index of the entries of a list is kept
+ * with it, so that it is not built again for each statement.
+ * <p>
+ * The {@code null} path represents the repository level ACL, like in {@link AccessControlManager}.
+ */
+class AclWorkingSet {
+
+    private final Map<String, JackrabbitAccessControlList> acls = new HashMap<>();
+
+    // paths for which only an applicable (not yet bound) policy was loaded
+    private final Set<String> applicable = new HashSet<>();
+
+    private final Map<String, JackrabbitAccessControlList> modified = new LinkedHashMap<>();
+
+    private final Map<String, AclUtil.EntryIndex> entryIndexes = new HashMap<>();
+
+    /** The first statement which modified each of the modified access control lists */
+    private final Map<String, Operation> sources = new HashMap<>();
+
+    private Operation statement;
+
+    private int writeCount;
+
+    /**
+     * @param acMgr the access control manager
+     * @param path the path, or {@code null} for the repository level ACL
+     * @param includeApplicable {@code true} to return an applicable policy if no ACL is bound to the path yet
+     * @return the access control list of the path, including modifications which were not written yet
+     * @throws RepositoryException if the access control list cannot be loaded
+     */
+    @Nullable
+    JackrabbitAccessControlList get(
+            @NotNull AccessControlManager acMgr, @Nullable String path, boolean includeApplicable)
+            throws RepositoryException {
+        JackrabbitAccessControlList acl = acls.get(path);
+        if (acl != null) {
+            return includeApplicable || !applicable.contains(path) ? acl : null;
+        }
+        acl = AclUtil.getAccessControlList(acMgr, path, false);
+        if (acl == null && includeApplicable) {
+            acl = AclUtil.getAccessControlList(acMgr, path, true);
+            if (acl != null) {
+                applicable.add(path);
+            }
+        }
+        if (acl != null) {
+            acls.put(path, acl);
+        }
+        return acl;
+    }
+
+    /**
+     * @param path the path, or {@code null} for the repository level ACL
+     * @param acl the access control list of the path, as returned by {@link #get(AccessControlManager, String, boolean)}
+     * @return the index of the entries of the access control list, which is kept until the next flush
+     * @throws RepositoryException if the entries cannot be read
+     */
+    @NotNull
+    AclUtil.EntryIndex getEntryIndex(@Nullable String path, @NotNull JackrabbitAccessControlList acl)
+            throws RepositoryException {
+        AclUtil.EntryIndex index = entryIndexes.get(path);
+        if (index == null) {
+            index = new AclUtil.EntryIndex(acl);
+            entryIndexes.put(path, index);
+        }
+        return index;
+    }
+
+    /**
+     * Update the index of the entries of the access control list of a path, if any, after entries were removed.
+     *
+     * @param path the path, or {@code null} for the repository level ACL
+     * @param principalNames the names of the principals whose entries were removed
+     */
+    void entriesModified(@Nullable String path, @NotNull Collection<String> principalNames) {
+        final AclUtil.EntryIndex index = entryIndexes.get(path);
+        if (index != null) {
+            principalNames.forEach(index::entriesModified);
+        }
+    }
+
+    /**
+     * Set the statement whose modifications are recorded next, so that a failure to write them can be
+     * reported for it.
+     *
+     * @param statement the statement being applied, or {@code null} if unknown
+     */
+    void setStatement(@Nullable Operation statement) {
+        this.statement = statement;
+    }
+
+    /**
+     * Mark the access control list of a path as modified, it is written by the next {@link #flush(AccessControlManager)}.
+     *
+     * @param path the path, or {@code null} for the repository level ACL
+     * @param acl the modified access control list
+     */
+    void setModified(@Nullable String path, @NotNull JackrabbitAccessControlList acl) {
+        acls.put(path, acl);
+        applicable.remove(path);
+        modified.put(path, acl);
+        if (statement != null) {
+            sources.putIfAbsent(path, statement);
+        }
+    }
+
+    /**
+     * Write all modified access control lists, and forget the loaded ones.
+     *
+     * @param acMgr the access control manager
+     * @throws RegistrationException if writing an access control list modified by a known statement fails
+     * @throws RepositoryException if writing another access control list fails
+     */
+    void flush(@NotNull AccessControlManager acMgr) throws RepositoryException {
+        try {
+            for (Map.Entry<String, JackrabbitAccessControlList> entry : modified.entrySet()) {
+                try {
+                    acMgr.setPolicy(entry.getKey(), entry.getValue());
+                } catch (RepositoryException e) {
+                    throw failed(entry.getKey(), e);
+                }
+                writeCount++;
+            }
+        } finally {
+            acls.clear();
+            applicable.clear();
+            entryIndexes.clear();
+            sources.clear();
+            statement = null;
+            modified.clear();
+        }
+    }
+
+    @NotNull
+    private RepositoryException failed(@Nullable String path, @NotNull RepositoryException e) {
+        final Operation source = sources.get(path);
+        if (source == null) {
+            return e;
+        }
+        return new RegistrationException(
+                "Unable to write access control list of " + (path == null ? "the repository" : path)
+                        + " modified by \"" + DoNothingVisitor.excerpt(source.asRepoInitString(), 100) + "\": "
+                        + e.getMessage(),
+                source,
+                e);
+    }
+
+    /**
+     * @return {@code true} if modified access control lists were not written yet
+     */
+    boolean hasModifications() {
+        return !modified.isEmpty();
+    }
+
+    /**
+     * @return the number of access control lists written so far
+     */
+    int getWriteCount() {
+        return writeCount;
+    }
+}
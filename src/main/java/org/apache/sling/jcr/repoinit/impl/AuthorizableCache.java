@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.ValueFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.AuthorizableTypeException;
+import org.apache.jackrabbit.api.security.user.Query;
+import org.apache.jackrabbit.api.security.user.QueryBuilder;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches the authorizable and principal lookups of a {@link SessionContext}, and keeps track of the
+ * principals of authorizables which were created since the last save.
+ */
+class AuthorizableCache {
+
+    /** The maximum number of authorizable IDs which are resolved with one query */
+    static final int RESOLVE_CHUNK_SIZE = 100;
+
+    private final Supplier<JackrabbitSession> session;
+
+    private final Map<String, Principal> nameToPrincipal = new HashMap<>();
+    // authorizables by lower-case ID, null values denote authorizables known not to exist
+    private final Map<String, Authorizable> idToAuthorizable = new HashMap<>();
+    // the principal names of the authorizables created since the last save
+    private final Set<String> unsavedPrincipals = new HashSet<>();
+    // whether a save may make principals of transient authorizables visible to the principal lookup
+    private boolean principalSaveUseful = true;
+
+    private int authorizableLookups;
+    private int resolvedAuthorizables;
+    private int principalLookups;
+    private int principalCacheHits;
+
+    AuthorizableCache(@NotNull Supplier<JackrabbitSession> session) {
+        this.session = session;
+    }
+
+    /**
+     * Lookup a principal by name, principals which exist are cached.
+     *
+     * @param principalName the principal name
+     * @return the principal or {@code null} if it does not exist
+     * @throws RepositoryException if the lookup fails
+     */
+    @Nullable
+    Principal getPrincipal(@NotNull String principalName) throws RepositoryException {
+        principalLookups++;
+        if (nameToPrincipal.containsKey(principalName)) {
+            principalCacheHits++;
+            return nameToPrincipal.get(principalName);
+        }
+        Principal p = session.get().getPrincipalManager().getPrincipal(principalName);
+        // Do not cache null principals
+        if (p != null) {
+            nameToPrincipal.put(principalName, p);
+        }
+        return p;
+    }
+
+    /**
+     * @param principalName the principal name
+     * @param principal the principal found by {@link #getPrincipal(String)}, or {@code null}
+     * @return {@code true} if saving the session may make the principal visible to principal queries:
+     *      it was not found, or belongs to an authorizable created since the last save, and authorizables
+     *      were created since the last save
+     */
+    boolean isSaveUseful(@NotNull String principalName, @Nullable Principal principal) {
+        return principalSaveUseful && (principal == null || unsavedPrincipals.contains(principalName));
+    }
+
+    /**
+     * Record that the session was saved, which makes the principals of all created authorizables visible.
+     */
+    void saved() {
+        principalSaveUseful = false;
+        unsavedPrincipals.clear();
+    }
+
+    /**
+     * @see SessionContext#getAuthorizable(String)
+     */
+    @Nullable
+    Authorizable getAuthorizable(@NotNull String id) throws RepositoryException {
+        final String key = toKey(id);
+        if (idToAuthorizable.containsKey(key)) {
+            return idToAuthorizable.get(key);
+        }
+        authorizableLookups++;
+        Authorizable a = session.get().getUserManager().getAuthorizable(id);
+        idToAuthorizable.put(key, a);
+        return a;
+    }
+
+    /**
+     * @see SessionContext#getAuthorizable(String, Class)
+     */
+    <T extends Authorizable> @Nullable T getAuthorizable(@NotNull String id, @NotNull Class<T> type)
+            throws RepositoryException {
+        Authorizable a = getAuthorizable(id);
+        if (a == null || type.isInstance(a)) {
+            return type.cast(a);
+        }
+        throw new AuthorizableTypeException(
+                "Invalid authorizable type '" + (a.isGroup() ? "Group" : "User") + "' for authorizable " + id);
+    }
+
+    /**
+     * @see SessionContext#resolveAuthorizables(Collection)
+     */
+    void resolveAuthorizables(@NotNull Collection<String> ids) throws RepositoryException {
+        final List<String> unresolved = new ArrayList<>();
+        for (String id : ids) {
+            if (!idToAuthorizable.containsKey(toKey(id))) {
+                unresolved.add(id);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            return;
+        }
+        final UserManager userManager = session.get().getUserManager();
+        final ValueFactory valueFactory = session.get().getValueFactory();
+        for (int start = 0; start < unresolved.size(); start += RESOLVE_CHUNK_SIZE) {
+            final List<String> chunk =
+                    unresolved.subList(start, Math.min(unresolved.size(), start + RESOLVE_CHUNK_SIZE));
+            final Iterator<Authorizable> found = userManager.findAuthorizables(new Query() {
+                @Override
+                public <T> void build(QueryBuilder<T> builder) {
+                    T condition = null;
+                    for (String id : chunk) {
+                        final T idCondition = builder.or(
+                                builder.eq("@rep:authorizableId", valueFactory.createValue(id)),
+                                builder.eq("@jcr:uuid", valueFactory.createValue(toContentId(id))));
+                        condition = condition == null ? idCondition : builder.or(condition, idCondition);
+                    }
+                    builder.setCondition(condition);
+                }
+            });
+            while (found.hasNext()) {
+                final Authorizable authorizable = found.next();
+                final String key = toKey(authorizable.getID());
+                if (!idToAuthorizable.containsKey(key)) {
+                    idToAuthorizable.put(key, authorizable);
+                    resolvedAuthorizables++;
+                }
+            }
+            for (String id : chunk) {
+                idToAuthorizable.putIfAbsent(toKey(id), null);
+            }
+        }
+    }
+
+    /**
+     * Register an authorizable created by the operations.
+     *
+     * @param authorizable the new authorizable
+     * @throws RepositoryException if the ID cannot be retrieved
+     */
+    void authorizableCreated(@NotNull Authorizable authorizable) throws RepositoryException {
+        // replaces an entry which denoted the authorizable as missing, whatever case it was looked up with
+        idToAuthorizable.put(toKey(authorizable.getID()), authorizable);
+        Principal principal = authorizable.getPrincipal();
+        nameToPrincipal.put(principal.getName(), principal);
+        unsavedPrincipals.add(principal.getName());
+        principalSaveUseful = true;
+    }
+
+    /**
+     * Register an authorizable removed by the operations.
+     *
+     * @param id the ID of the removed authorizable
+     * @param principalName the principal name of the removed authorizable
+     */
+    void authorizableRemoved(@NotNull String id, @NotNull String principalName) {
+        idToAuthorizable.put(toKey(id), null);
+        nameToPrincipal.remove(principalName);
+        unsavedPrincipals.remove(principalName);
+    }
+
+    /**
+     * The user manager resolves IDs ignoring case, the cache therefore keys authorizables by their lower-case ID.
+     */
+    private static String toKey(String id) {
+        return id.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Oak stores an authorizable with a {@code jcr:uuid} derived from its lower-case ID, and the user manager
+     * looks IDs up by it, so a query on it finds authorizables regardless of the case they are referenced with.
+     */
+    private static String toContentId(String id) {
+        return UUID.nameUUIDFromBytes(toKey(id).getBytes(StandardCharsets.UTF_8))
+                .toString();
+    }
+
+    /**
+     * @return the number of authorizables which were looked up individually
+     */
+    int getAuthorizableLookups() {
+        return authorizableLookups;
+    }
+
+    /**
+     * @return the number of authorizables which were resolved in bulk by {@link #resolveAuthorizables(Collection)}
+     */
+    int getResolvedAuthorizables() {
+        return resolvedAuthorizables;
+    }
+
+    /**
+     * @return the number of principal lookups
+     */
+    int getPrincipalLookups() {
+        return principalLookups;
+    }
+
+    /**
+     * @return the number of principal lookups which were answered from the cache
+     */
+    int getPrincipalCacheHits() {
+        return principalCacheHits;
+    }
+}
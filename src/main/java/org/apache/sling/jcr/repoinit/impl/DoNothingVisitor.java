@@ -59,12 +59,24 @@ class DoNothingVisitor implements OperationVisitor {
 
     protected final Session session;
 
+    protected final SessionContext context;
+
     /** Create a visitor using the supplied JCR Session.
      * @param s must have sufficient rights to create users
      *      and set ACLs.
      */
     protected DoNothingVisitor(Session s) {
-        session = s;
+        this(new SessionContext(s));
+    }
+
+    /** Create a visitor using the supplied session context, which
+     *  is shared by all visitors that apply the same operations.
+     * @param context the session context, the session must have sufficient
+     *      rights to create users and set ACLs.
+     */
+    protected DoNothingVisitor(SessionContext context) {
+        this.context = context;
+        session = context.session;
     }
 
     protected void report(Exception e, String message) {
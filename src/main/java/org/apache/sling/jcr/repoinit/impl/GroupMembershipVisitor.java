@@ -19,7 +19,6 @@
 package org.apache.sling.jcr.repoinit.impl;
 
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 
 import java.util.List;
 
@@ -35,12 +34,12 @@ import org.apache.sling.repoinit.parser.operations.RemoveGroupMembers;
 class GroupMembershipVisitor extends DoNothingVisitor {
 
     /**
-     * Create a visitor using the supplied JCR Session.
+     * Create a visitor using the supplied session context.
      *
-     * @param s must have sufficient rights to add/remove members to/from a group.
+     * @param context the session context, the session must have sufficient rights to add/remove members to/from a group.
      */
-    public GroupMembershipVisitor(Session s) {
-        super(s);
+    public GroupMembershipVisitor(SessionContext context) {
+        super(context);
     }
 
     @Override
@@ -50,11 +49,11 @@ class GroupMembershipVisitor extends DoNothingVisitor {
         Authorizable group = null;
         log.info("Adding members '{}' to group '{}'", members, groupname);
         try {
-            group = UserUtil.getAuthorizable(session, groupname);
+            group = context.getAuthorizable(groupname);
             if (group == null || !group.isGroup()) {
                 report(groupname + " is not a group");
             } else {
-                ((Group) group).addMembers(members.toArray(new String[0]));
+                context.updateMembers((Group) group, members, true, am);
             }
         } catch (RepositoryException e) {
             report(e, "Unable to add members to group [" + groupname + "]:" + e);
@@ -68,11 +67,11 @@ class GroupMembershipVisitor extends DoNothingVisitor {
         Authorizable group = null;
         log.info("Removing members '{}' from group '{}'", members, groupname);
         try {
-            group = UserUtil.getAuthorizable(session, groupname);
+            group = context.getAuthorizable(groupname);
             if (group == null || !group.isGroup()) {
                 report(groupname + " is not a group");
             } else {
-                ((Group) group).removeMembers(members.toArray(new String[0]));
+                context.updateMembers((Group) group, members, false, rm);
             }
         } catch (RepositoryException e) {
             report(e, "Unable to remove members from group [" + groupname + "]:" + e);
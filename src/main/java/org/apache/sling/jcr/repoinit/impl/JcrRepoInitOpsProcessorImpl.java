@@ -22,86 +22,124 @@ import javax.jcr.Session;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Stream;
+import java.util.function.IntConsumer;
 
 import org.apache.sling.jcr.repoinit.JcrRepoInitOpsProcessor;
 import org.apache.sling.repoinit.parser.operations.Operation;
-import org.apache.sling.repoinit.parser.operations.OperationVisitor;
+import org.jetbrains.annotations.Nullable;
 import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static java.util.Arrays.asList;
-import static java.util.Collections.singleton;
-
 /**
  * Apply Operations produced by the repoinit parser to a JCR Repository
  */
 @Component(
         service = JcrRepoInitOpsProcessor.class,
         property = {Constants.SERVICE_VENDOR + "=The Apache Software Foundation"})
+@Designate(ocd = JcrRepoInitOpsProcessorImpl.Config.class)
 public class JcrRepoInitOpsProcessorImpl implements JcrRepoInitOpsProcessor {
 
+    @ObjectClassDefinition(
+            name = "Apache Sling Repoinit JCR Operations Processor",
+            description = "Applies the operations produced by the repoinit parser to the JCR content repository.")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "Save batch operations",
+                description = "Maximum number of path creation operations that are applied before the session is "
+                        + "saved. A value of 1 saves after each operation.")
+        int saveBatchOperations() default SaveBatch.DEFAULT_OPERATIONS;
+
+        @AttributeDefinition(
+                name = "Save batch changes",
+                description = "Maximum number of transient node changes made by path creation operations before the "
+                        + "session is saved.")
+        int saveBatchChanges() default SaveBatch.DEFAULT_CHANGES;
+    }
+
     private static final Logger log = LoggerFactory.getLogger(JcrRepoInitOpsProcessorImpl.class);
 
+    private int saveBatchOperations = SaveBatch.DEFAULT_OPERATIONS;
+    private int saveBatchChanges = SaveBatch.DEFAULT_CHANGES;
+
+    @Activate
+    public void activate(final Config config) {
+        this.saveBatchOperations = config.saveBatchOperations();
+        this.saveBatchChanges = config.saveBatchChanges();
+    }
+
     /**
      * Apply the supplied operations: first the namespaces and nodetypes
      * registrations, then the service users, paths and ACLs.
      */
     @Override
     public void apply(Session session, List<Operation> ops) {
-        AtomicReference<Operation> lastAttemptedOperation = new AtomicReference<>();
+        apply(session, ops, null);
+    }
+
+    /**
+     * Apply the supplied operations, like {@link #apply(Session, List)}, and report the progress
+     * of saved changes to the supplied listener.
+     *
+     * @param session the session
+     * @param ops the operations
+     * @param checkpointListener receives the number of leading operations whose changes were saved, may be {@code null}
+     */
+    @Override
+    public void apply(Session session, List<Operation> ops, @Nullable IntConsumer checkpointListener) {
+        final SessionContext context = createContext(session);
+        final OperationDispatcher dispatcher = new OperationDispatcher(context, ops);
+        dispatcher.setCheckpointListener(checkpointListener);
         try {
-            Stream.of(
-                            // register namespaces first
-                            singleton(new NamespacesVisitor(session)),
-                            // then create node types and privileges, both use namespaces
-                            asList(new NodetypesVisitor(session), new PrivilegeVisitor(session)),
-                            // finally apply everything else
-                            asList(
-                                    new UserVisitor(session),
-                                    new NodeVisitor(session),
-                                    new AclVisitor(session),
-                                    new GroupMembershipVisitor(session),
-                                    new NodePropertiesVisitor(session)))
-                    .forEach(visitorGroup -> {
-                        ops.forEach(op -> {
-                            lastAttemptedOperation.set(op);
-                            visitorGroup.forEach(op::accept);
-                        });
-                    });
+            dispatcher.dispatch();
+            log.debug(
+                    "Applied {} operations with {} registered namespaces ({} unchanged), "
+                            + "{} registered node types ({} unchanged), {} registered privileges ({} unchanged), "
+                            + "{} saves, {} changed nodes, "
+                            + "{} authorizable lookups ({} resolved in bulk), {} principal lookups ({} cached), "
+                            + "{} forced saves",
+                    ops.size(),
+                    context.getRegisteredNamespaces(),
+                    context.getSkippedNamespaces(),
+                    context.getRegisteredNodeTypes(),
+                    context.getUnchangedNodeTypes(),
+                    context.getRegisteredPrivilegeCount(),
+                    context.getExistingPrivilegeCount(),
+                    context.getSaveCount(),
+                    context.getChangedNodes(),
+                    context.getAuthorizableLookups(),
+                    context.getResolvedAuthorizables(),
+                    context.getPrincipalLookups(),
+                    context.getPrincipalCacheHits(),
+                    context.getForcedSaves());
         } catch (RepoInitException originalFailure) {
-            handleLegacyOrderingSupport(session, ops, originalFailure, lastAttemptedOperation);
+            handleLegacyOrderingSupport(session, ops, originalFailure, dispatcher.getLastAttemptedOperation());
         }
     }
 
+    SessionContext createContext(Session session) {
+        final SessionContext context = new SessionContext(session);
+        context.setSaveBatchSize(saveBatchOperations, saveBatchChanges);
+        context.enableAclWorkingSet();
+        context.enableMembershipWorkingSet();
+        context.enableNodeTypeWorkingSet();
+        context.enablePrivilegeWorkingSet();
+        return context;
+    }
+
     // support legacy statement reordering for backwards compatibility
-    private static void handleLegacyOrderingSupport(
-            Session session,
-            List<Operation> ops,
-            RepoInitException originalFailure,
-            AtomicReference<Operation> lastAttemptedOperation) {
+    private void handleLegacyOrderingSupport(
+            Session session, List<Operation> ops, RepoInitException originalFailure, Operation lastAttemptedOperation) {
         try {
             session.refresh(false); // drop transient changes
 
-            final OperationVisitor[] visitors = {
-                new NamespacesVisitor(session),
-                new NodetypesVisitor(session),
-                new PrivilegeVisitor(session),
-                new UserVisitor(session),
-                new NodeVisitor(session),
-                new AclVisitor(session),
-                new GroupMembershipVisitor(session),
-                new NodePropertiesVisitor(session)
-            };
-
-            for (OperationVisitor v : visitors) {
-                for (Operation op : ops) {
-                    op.accept(v);
-                }
-            }
+            new OperationDispatcher(createContext(session), ops).dispatchByHandler();
 
             log.warn(
                     "DEPRECATION - The repoinit script being executed relies on a bug causing repoinit statements "
@@ -109,7 +147,7 @@ public class JcrRepoInitOpsProcessorImpl implements JcrRepoInitOpsProcessor {
                             + "mode. Please review and fix the ordering of your repoinit statements to avoid future issues. "
                             + "The code supporting the legacy order will be removed in a future release. The new code "
                             + "failed on the statement \"{}\". The original exception message was: {}",
-                    Optional.ofNullable(lastAttemptedOperation.get())
+                    Optional.ofNullable(lastAttemptedOperation)
                             .map(Operation::asRepoInitString)
                             .orElse("unknown"),
                     originalFailure.getMessage());
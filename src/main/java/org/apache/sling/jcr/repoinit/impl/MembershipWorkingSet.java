@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the membership changes of a sequence of group membership statements, and applies
+ * them with one {@code addMembers} and one {@code removeMembers} call per group when flushed.
+ * <p>
+ * For each member only the last change is kept, and members which are already (or no longer) declared
+ * members of the group are filtered out, so that unchanged memberships do not rewrite the member
+ * references of large groups. The statement of each change is kept, so that a failure to apply it can be
+ * reported for that statement.
+ */
+class MembershipWorkingSet {
+
+    private static final Logger log = LoggerFactory.getLogger(MembershipWorkingSet.class);
+
+    private static class GroupChanges {
+        final String groupId;
+        final Group group;
+        // true to add, false to remove the member with the given ID
+        final Map<String, Boolean> members = new LinkedHashMap<>();
+        // the statement of the change of each member
+        final Map<String, Operation> sources = new HashMap<>();
+
+        GroupChanges(String groupId, Group group) {
+            this.groupId = groupId;
+            this.group = group;
+        }
+    }
+
+    private final Map<String, GroupChanges> changes = new LinkedHashMap<>();
+
+    private int updatedGroups;
+
+    /**
+     * Record members to add to or remove from a group.
+     *
+     * @param group the group
+     * @param memberIds the IDs of the members
+     * @param add {@code true} to add the members, {@code false} to remove them
+     * @param statement the statement which requested the changes
+     * @throws RepositoryException if the ID of the group cannot be retrieved
+     */
+    void update(@NotNull Group group, @NotNull List<String> memberIds, boolean add, @NotNull Operation statement)
+            throws RepositoryException {
+        final GroupChanges groupChanges = changes.computeIfAbsent(group.getID(), id -> new GroupChanges(id, group));
+        for (String memberId : memberIds) {
+            // a later statement overrides an earlier one for the same member
+            groupChanges.members.remove(memberId);
+            groupChanges.members.put(memberId, add);
+            groupChanges.sources.put(memberId, statement);
+        }
+    }
+
+    /**
+     * Apply the net membership changes, and forget them.
+     *
+     * @param context the session context, used to look up the members
+     * @throws RegistrationException if changing the members fails, for the statement of the first failed change
+     */
+    void flush(@NotNull SessionContext context) throws RepositoryException {
+        try {
+            for (GroupChanges groupChanges : changes.values()) {
+                final List<String> toAdd = new ArrayList<>();
+                final List<String> toRemove = new ArrayList<>();
+                for (Map.Entry<String, Boolean> member : groupChanges.members.entrySet()) {
+                    final Authorizable authorizable;
+                    final boolean declared;
+                    try {
+                        authorizable = context.getAuthorizable(member.getKey());
+                        // unknown members are left to the user manager, which applies the configured import behavior
+                        declared = authorizable != null && groupChanges.group.isDeclaredMember(authorizable);
+                    } catch (RepositoryException e) {
+                        throw failed(groupChanges, member.getKey(), e);
+                    }
+                    if (member.getValue() && (authorizable == null || !declared)) {
+                        toAdd.add(member.getKey());
+                    } else if (!member.getValue() && (authorizable == null || declared)) {
+                        toRemove.add(member.getKey());
+                    }
+                }
+                final String groupId = groupChanges.groupId;
+                if (toAdd.isEmpty() && toRemove.isEmpty()) {
+                    log.info("Memberships of group '{}' are up to date, nothing to do", groupId);
+                    continue;
+                }
+                if (!toRemove.isEmpty()) {
+                    log.info("Removing members '{}' from group '{}'", toRemove, groupId);
+                    try {
+                        groupChanges.group.removeMembers(toRemove.toArray(new String[0]));
+                    } catch (RepositoryException e) {
+                        throw failed(groupChanges, toRemove.get(0), e);
+                    }
+                }
+                if (!toAdd.isEmpty()) {
+                    log.info("Adding members '{}' to group '{}'", toAdd, groupId);
+                    try {
+                        groupChanges.group.addMembers(toAdd.toArray(new String[0]));
+                    } catch (RepositoryException e) {
+                        throw failed(groupChanges, toAdd.get(0), e);
+                    }
+                }
+                updatedGroups++;
+            }
+        } finally {
+            changes.clear();
+        }
+    }
+
+    @NotNull
+    private static RegistrationException failed(
+            @NotNull GroupChanges groupChanges, @NotNull String memberId, @NotNull RepositoryException e) {
+        final Operation source = groupChanges.sources.get(memberId);
+        return new RegistrationException(
+                "Unable to update the members of group " + groupChanges.groupId + " changed by \""
+                        + DoNothingVisitor.excerpt(source.asRepoInitString(), 100) + "\": " + e.getMessage(),
+                source,
+                e);
+    }
+
+    /**
+     * @return {@code true} if recorded membership changes were not applied yet
+     */
+    boolean hasChanges() {
+        return !changes.isEmpty();
+    }
+
+    /**
+     * @return the number of groups whose members were changed so far
+     */
+    int getUpdatedGroups() {
+        return updatedGroups;
+    }
+}
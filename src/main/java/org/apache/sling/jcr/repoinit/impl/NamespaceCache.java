@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A snapshot of the namespace registry, used by a {@link SessionContext} to skip namespace registrations
+ * which would not change anything.
+ */
+class NamespaceCache {
+
+    private final Session session;
+
+    // registered namespace URIs by prefix, a snapshot of the namespace registry taken on first use
+    private Map<String, String> namespaces;
+    private int registeredNamespaces;
+    private int skippedNamespaces;
+
+    NamespaceCache(@NotNull Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @see SessionContext#skipNamespaceRegistration(String, String)
+     */
+    boolean skipNamespaceRegistration(@NotNull String prefix, @NotNull String uri) throws RepositoryException {
+        if (namespaces == null) {
+            final NamespaceRegistry registry = session.getWorkspace().getNamespaceRegistry();
+            namespaces = new HashMap<>();
+            for (String registered : registry.getPrefixes()) {
+                namespaces.put(registered, registry.getURI(registered));
+            }
+        }
+        if (uri.equals(namespaces.get(prefix))) {
+            skippedNamespaces++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @see SessionContext#namespaceRegistered(String, String)
+     */
+    void namespaceRegistered(@NotNull String prefix, @NotNull String uri) {
+        registeredNamespaces++;
+        if (namespaces != null) {
+            // registering a known URI with another prefix remaps it
+            namespaces.values().remove(uri);
+            namespaces.put(prefix, uri);
+        }
+    }
+
+    /**
+     * @return the number of namespaces which were registered
+     */
+    int getRegisteredNamespaces() {
+        return registeredNamespaces;
+    }
+
+    /**
+     * @return the number of namespace registrations which were skipped, as they would not change anything
+     */
+    int getSkippedNamespaces() {
+        return skippedNamespaces;
+    }
+}
@@ -19,7 +19,6 @@
 package org.apache.sling.jcr.repoinit.impl;
 
 import javax.jcr.NamespaceRegistry;
-import javax.jcr.Session;
 
 import org.apache.sling.repoinit.parser.operations.RegisterNamespace;
 
@@ -29,17 +28,21 @@ import org.apache.sling.repoinit.parser.operations.RegisterNamespace;
  */
 class NamespacesVisitor extends DoNothingVisitor {
 
-    /** Create a visitor using the supplied JCR Session.
-     * @param s must have sufficient rights to create users
+    /** Create a visitor using the supplied session context.
+     * @param context the session context, the session must have sufficient rights to create users
      *      and set ACLs.
      */
-    public NamespacesVisitor(Session s) {
-        super(s);
+    public NamespacesVisitor(SessionContext context) {
+        super(context);
     }
 
     @Override
     public void visitRegisterNamespace(RegisterNamespace rn) {
         try {
+            if (context.skipNamespaceRegistration(rn.getPrefix(), rn.getURI())) {
+                log.info("Namespace from {} is already registered, nothing to do", rn);
+                return;
+            }
             final NamespaceRegistry reg = session.getWorkspace().getNamespaceRegistry();
             log.info("Registering namespace from {}", rn);
             if (!rn.getURI().contains(":")) {
@@ -48,6 +51,7 @@ class NamespacesVisitor extends DoNothingVisitor {
                         rn.getURI());
             }
             reg.registerNamespace(rn.getPrefix(), rn.getURI());
+            context.namespaceRegistered(rn.getPrefix(), rn.getURI());
         } catch (Exception e) {
             report(e, "Unable to register namespace from " + rn);
         }
@@ -23,7 +23,6 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.nodetype.NodeType;
 import javax.jcr.nodetype.PropertyDefinition;
@@ -32,7 +31,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
-import java.util.stream.Stream;
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.util.Text;
@@ -66,12 +64,12 @@ class NodePropertiesVisitor extends DoNothingVisitor {
     private static final char SUBTREE_DELIMINATOR = '#';
 
     /**
-     * Create a visitor using the supplied JCR Session.
+     * Create a visitor using the supplied session context.
      *
-     * @param s must have sufficient rights to set properties on a path.
+     * @param context the session context, the session must have sufficient rights to set properties on a path.
      */
-    public NodePropertiesVisitor(Session s) {
-        super(s);
+    public NodePropertiesVisitor(SessionContext context) {
+        super(context);
     }
 
     /**
@@ -81,16 +79,16 @@ class NodePropertiesVisitor extends DoNothingVisitor {
      * @param parentNode the parent node where the property will be set
      * @return the property definition of the property or null if it could not be determined
      */
-    private static @Nullable PropertyDefinition resolvePropertyDefinition(
-            @NotNull String propName, @NotNull Node parentNode) throws RepositoryException {
+    private @Nullable PropertyDefinition resolvePropertyDefinition(@NotNull String propName, @NotNull Node parentNode)
+            throws RepositoryException {
         NodeType primaryNodeType = parentNode.getPrimaryNodeType();
         // try the primary type
-        PropertyDefinition propDef = resolvePropertyDefinition(propName, primaryNodeType);
+        PropertyDefinition propDef = context.getPropertyDefinition(primaryNodeType, propName);
         if (propDef == null) {
             // not found in the primary type, so try the mixins
             NodeType[] mixinNodeTypes = parentNode.getMixinNodeTypes();
             for (NodeType mixinNodeType : mixinNodeTypes) {
-                propDef = resolvePropertyDefinition(propName, mixinNodeType);
+                propDef = context.getPropertyDefinition(mixinNodeType, propName);
                 if (propDef != null) {
                     break;
                 }
@@ -99,22 +97,6 @@ class NodePropertiesVisitor extends DoNothingVisitor {
         return propDef;
     }
 
-    /**
-     * Inspect the NodeType definition to try to determine the
-     * requiredType for the specified property
-     *
-     * @param propName the propertyName to check
-     * @param nodeType the node type to be searched for the property definition
-     * @return the required type of the property or {@link PropertyType#UNDEFINED} if it could not be determined
-     */
-    private static @Nullable PropertyDefinition resolvePropertyDefinition(
-            @NotNull String propName, @NotNull NodeType nodeType) {
-        return Stream.of(nodeType.getPropertyDefinitions())
-                .filter(pd -> propName.equals(pd.getName()))
-                .findFirst()
-                .orElse(null);
-    }
-
     /**
      * SLING-11293 - Check if a property is defined as autocreated and the current value
      * is the same as the autocreated default value
@@ -123,8 +105,7 @@ class NodePropertiesVisitor extends DoNothingVisitor {
      * @param propertyPath the property relative path to check
      * @return true or false
      */
-    protected static boolean isUnchangedAutocreatedProperty(Node n, final String propertyPath)
-            throws RepositoryException {
+    protected boolean isUnchangedAutocreatedProperty(Node n, final String propertyPath) throws RepositoryException {
         if (n.hasProperty(propertyPath)) {
             final Property property = n.getProperty(propertyPath);
             final String name = property.getName();
@@ -148,7 +129,7 @@ class NodePropertiesVisitor extends DoNothingVisitor {
      * @throws RepositoryException
      * @throws PathNotFoundException
      */
-    private static boolean needToSetProperty(@NotNull Node n, @NotNull PropertyLine line) throws RepositoryException {
+    private boolean needToSetProperty(@NotNull Node n, @NotNull PropertyLine line) throws RepositoryException {
         if (!line.isDefault()) {
             // It's a "set" line -> overwrite existing value if any
             return true;
@@ -173,7 +154,7 @@ class NodePropertiesVisitor extends DoNothingVisitor {
      * @throws RepositoryException
      * @throws PathNotFoundException
      */
-    private static boolean needToSetProperty(Session session, Authorizable a, String pRelPath, PropertyLine line)
+    private boolean needToSetProperty(@Nullable Node n, Authorizable a, String pRelPath, PropertyLine line)
             throws RepositoryException {
         if (!line.isDefault()) {
             // It's a "set" line -> overwrite existing value if any
@@ -182,10 +163,6 @@ class NodePropertiesVisitor extends DoNothingVisitor {
 
         // Otherwise set the property only if not set yet
         boolean needToSet;
-        Node n = null;
-        if (session.nodeExists(a.getPath())) {
-            n = session.getNode(a.getPath());
-        }
         if (n != null && isUnchangedAutocreatedProperty(n, pRelPath)) { // SLING-11293
             needToSet = true;
         } else {
@@ -215,16 +192,14 @@ class NodePropertiesVisitor extends DoNothingVisitor {
 
     /**
      * Lookup the authorizables for the given ids
-     * @param session the jcr session
      * @param ids delimited list of authorizable ids
      * @return iterator over the found authorizables
      */
     @NotNull
-    private static Iterable<Authorizable> getAuthorizables(@NotNull Session session, @NotNull String ids)
-            throws RepositoryException {
+    private Iterable<Authorizable> getAuthorizables(@NotNull String ids) throws RepositoryException {
         List<Authorizable> authorizables = new ArrayList<>();
         for (String id : Text.explode(ids, ID_DELIMINATOR)) {
-            Authorizable a = UserUtil.getAuthorizable(session, id);
+            Authorizable a = context.getAuthorizable(id);
             if (a == null) {
                 throw new PathNotFoundException("Cannot resolve path of authorizable with id '" + id + "'.");
             }
@@ -247,19 +222,25 @@ class NodePropertiesVisitor extends DoNothingVisitor {
         }
         String ids = nodePath.substring(PATH_AUTHORIZABLE.length(), lastHashIndex);
         String subTreePath = nodePath.substring(lastHashIndex + 1);
-        for (Authorizable a : getAuthorizables(session, ids)) {
+        for (Authorizable a : getAuthorizables(ids)) {
             log.info("Setting properties on authorizable '{}'", a.getID());
+            // the node of the authorizable, resolved once to check the existing properties
+            final Node n = session.nodeExists(a.getPath()) ? session.getNode(a.getPath()) : null;
             for (PropertyLine pl : propertyLines) {
                 final String pName = pl.getPropertyName();
                 final String pRelPath = toRelPath(subTreePath, pName);
-                if (needToSetProperty(session, a, pRelPath, pl)) {
+                if (needToSetProperty(n, a, pRelPath, pl)) {
                     final List<Object> values = pl.getPropertyValues();
                     if (values.size() > 1) {
                         Value[] pValues = convertToValues(values);
-                        a.setProperty(pRelPath, pValues);
+                        if (hasAuthorizablePropertyChange(n, pRelPath, pValues)) {
+                            a.setProperty(pRelPath, pValues);
+                        }
                     } else {
                         Value pValue = convertToValue(values.get(0));
-                        a.setProperty(pRelPath, pValue);
+                        if (hasAuthorizablePropertyChange(n, pRelPath, pValue)) {
+                            a.setProperty(pRelPath, pValue);
+                        }
                     }
                 } else {
                     log.info(
@@ -306,6 +287,23 @@ class NodePropertiesVisitor extends DoNothingVisitor {
         }
     }
 
+    /**
+     * Same as {@link #hasPropertyChange(Property, int, Value...)} for a property of an authorizable, which
+     * is considered changed if the node of the authorizable is not accessible.
+     */
+    private boolean hasAuthorizablePropertyChange(@Nullable Node n, String pRelPath, Value... newValues)
+            throws RepositoryException {
+        if (n == null) {
+            return true;
+        }
+        final Property oldProperty = n.hasProperty(pRelPath) ? n.getProperty(pRelPath) : null;
+        if (hasPropertyChange(oldProperty, newValues[0].getType(), newValues)) {
+            return true;
+        }
+        log.info("Property '{}' of authorizable at '{}' is unchanged, not setting it", pRelPath, n.getPath());
+        return false;
+    }
+
     private boolean hasPropertyChange(Property oldProperty, int newType, Value... newValues)
             throws RepositoryException {
         if (oldProperty == null || oldProperty.getType() != newType) {
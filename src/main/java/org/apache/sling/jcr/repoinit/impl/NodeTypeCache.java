@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Indexes the property definitions of the node types used by the operations of a {@link SessionContext}.
+ */
+class NodeTypeCache {
+
+    // property definitions by node type name and property name, residual definitions use the name "*"
+    private final Map<String, Map<String, PropertyDefinition>> propertyDefinitions = new HashMap<>();
+
+    /**
+     * @see SessionContext#getPropertyDefinition(NodeType, String)
+     */
+    @Nullable
+    PropertyDefinition getPropertyDefinition(@NotNull NodeType nodeType, @NotNull String propertyName) {
+        return propertyDefinitions
+                .computeIfAbsent(nodeType.getName(), n -> {
+                    final Map<String, PropertyDefinition> byName = new HashMap<>();
+                    for (PropertyDefinition pd : nodeType.getPropertyDefinitions()) {
+                        byName.putIfAbsent(pd.getName(), pd);
+                    }
+                    return byName;
+                })
+                .get(propertyName);
+    }
+
+    /**
+     * Forget the indexed node type definitions, to be called when node types are registered.
+     */
+    void nodeTypesChanged() {
+        propertyDefinitions.clear();
+    }
+}
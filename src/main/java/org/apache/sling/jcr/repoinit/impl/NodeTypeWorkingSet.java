@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.nodetype.NodeTypeDefinition;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.nodetype.NodeTypeTemplate;
+import javax.jcr.nodetype.PropertyDefinition;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.jackrabbit.commons.cnd.CompactNodeTypeDefReader;
+import org.apache.jackrabbit.commons.cnd.ParseException;
+import org.apache.jackrabbit.commons.cnd.TemplateBuilderFactory;
+import org.apache.sling.repoinit.parser.operations.RegisterNodetypes;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the node types of a sequence of {@code register nodetypes} statements, and registers
+ * them with one {@code registerNodeTypes} call when flushed.
+ * <p>
+ * Like {@code CndImporter.registerNodeTypes(Reader, Session)}, which was used before, node types which
+ * are already registered are kept as they are. Their definitions are compared with the ones of the
+ * statements, and a difference is logged, so that repeated startups do not register anything.
+ */
+class NodeTypeWorkingSet {
+
+    private static final Logger log = LoggerFactory.getLogger(NodeTypeWorkingSet.class);
+
+    private static final String NT_BASE = "nt:base";
+
+    private final Map<String, NodeTypeTemplate> pending = new LinkedHashMap<>();
+
+    /** The statements which declared the pending node types */
+    private final Map<String, RegisterNodetypes> sources = new LinkedHashMap<>();
+
+    private int registeredNodeTypes;
+
+    private int unchangedNodeTypes;
+
+    /**
+     * Parse the node types of a CND and record the ones which are not registered yet.
+     * Namespaces declared by the CND are registered while parsing, like before.
+     *
+     * @param session the session
+     * @param rn the statement
+     * @throws ParseException if the CND is invalid
+     * @throws IOException if reading the CND fails
+     * @throws RepositoryException if parsing or comparing the definitions fails
+     */
+    void add(@NotNull Session session, @NotNull RegisterNodetypes rn)
+            throws ParseException, IOException, RepositoryException {
+        final String cnd = rn.getCndStatements();
+        final NodeTypeManager ntMgr = session.getWorkspace().getNodeTypeManager();
+        final TemplateBuilderFactory factory = new TemplateBuilderFactory(
+                ntMgr, session.getValueFactory(), session.getWorkspace().getNamespaceRegistry());
+        final List<NodeTypeTemplate> templates;
+        try (StringReader reader = new StringReader(cnd)) {
+            templates = new CompactNodeTypeDefReader<>(reader, "cnd input stream", factory).getNodeTypeDefinitions();
+        }
+        for (NodeTypeTemplate template : templates) {
+            final String name = template.getName();
+            if (pending.containsKey(name)) {
+                // registered by an earlier statement of the same sequence
+                continue;
+            }
+            if (ntMgr.hasNodeType(name)) {
+                unchangedNodeTypes++;
+                if (!signature(template).equals(signature(ntMgr.getNodeType(name)))) {
+                    log.warn("Node type {} is already registered with a different definition, which is kept", name);
+                }
+                continue;
+            }
+            pending.put(name, template);
+            sources.put(name, rn);
+        }
+    }
+
+    /**
+     * Register the recorded node types, and forget them.
+     *
+     * @param context the session context
+     * @throws RegistrationException if registering the node types fails
+     * @throws RepositoryException if the node type manager is not available
+     */
+    void flush(@NotNull SessionContext context) throws RepositoryException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            final NodeTypeManager ntMgr = context.session.getWorkspace().getNodeTypeManager();
+            for (NodeTypeTemplate template : pending.values()) {
+                try {
+                    ensureNtBase(template, ntMgr);
+                } catch (RepositoryException e) {
+                    throw failed(sources.get(template.getName()), e);
+                }
+            }
+            log.info("Registering node types {}", pending.keySet());
+            try {
+                ntMgr.registerNodeTypes(pending.values().toArray(new NodeTypeDefinition[0]), true);
+            } catch (RepositoryException e) {
+                throw failed(getFailedSource(e), e);
+            }
+            registeredNodeTypes += pending.size();
+            context.nodeTypesChanged();
+        } finally {
+            pending.clear();
+            sources.clear();
+        }
+    }
+
+    @NotNull
+    private RegistrationException failed(@NotNull RegisterNodetypes source, @NotNull RepositoryException e) {
+        final List<String> names = new ArrayList<>();
+        for (Map.Entry<String, RegisterNodetypes> entry : sources.entrySet()) {
+            if (entry.getValue() == source) {
+                names.add(entry.getKey());
+            }
+        }
+        return new RegistrationException(
+                "Unable to register node types " + names + " declared by \""
+                        + DoNothingVisitor.excerpt(source.getCndStatements(), 100) + "\": " + e.getMessage(),
+                source,
+                e);
+    }
+
+    /**
+     * The node types are registered together, so the failing statement is the one declaring a node type
+     * named by the failure, or the first one if none is named.
+     */
+    @NotNull
+    private RegisterNodetypes getFailedSource(@NotNull RepositoryException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            final String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            for (Map.Entry<String, RegisterNodetypes> source : sources.entrySet()) {
+                if (message.contains(source.getKey())) {
+                    return source.getValue();
+                }
+            }
+        }
+        return sources.values().iterator().next();
+    }
+
+    /**
+     * @return the number of node types which were registered so far
+     */
+    int getRegisteredNodeTypes() {
+        return registeredNodeTypes;
+    }
+
+    /**
+     * @return the number of node types which were not registered, as they already existed
+     */
+    int getUnchangedNodeTypes() {
+        return unchangedNodeTypes;
+    }
+
+    /** Same as {@code CndImporter}: primary types without a primary supertype extend nt:base */
+    private void ensureNtBase(@NotNull NodeTypeTemplate template, @NotNull NodeTypeManager ntMgr)
+            throws RepositoryException {
+        if (template.isMixin() || NT_BASE.equals(template.getName())) {
+            return;
+        }
+        final String[] supertypes = template.getDeclaredSupertypeNames();
+        for (String supertype : supertypes) {
+            final NodeTypeDefinition definition =
+                    pending.containsKey(supertype) ? pending.get(supertype) : ntMgr.getNodeType(supertype);
+            if (!definition.isMixin()) {
+                return;
+            }
+        }
+        final String[] withNtBase = new String[supertypes.length + 1];
+        withNtBase[0] = NT_BASE;
+        System.arraycopy(supertypes, 0, withNtBase, 1, supertypes.length);
+        template.setDeclaredSuperTypeNames(withNtBase);
+    }
+
+    /**
+     * @return the attributes of a node type definition which are compared, independent of the order
+     *      of the supertypes and item definitions
+     */
+    private static Set<String> signature(@NotNull NodeTypeDefinition definition) {
+        final Set<String> signature = new HashSet<>();
+        signature.add("mixin=" + definition.isMixin());
+        signature.add("abstract=" + definition.isAbstract());
+        signature.add("orderable=" + definition.hasOrderableChildNodes());
+        signature.add("queryable=" + definition.isQueryable());
+        signature.add("primaryItem=" + definition.getPrimaryItemName());
+        final Set<String> supertypes = new TreeSet<>(Arrays.asList(definition.getDeclaredSupertypeNames()));
+        // nt:base is implicit for primary types of a CND
+        supertypes.remove(NT_BASE);
+        signature.add("supertypes=" + supertypes);
+        final PropertyDefinition[] properties = definition.getDeclaredPropertyDefinitions();
+        for (PropertyDefinition pd : properties == null ? new PropertyDefinition[0] : properties) {
+            signature.add("property=" + pd.getName()
+                    + "," + pd.getRequiredType()
+                    + "," + pd.isMultiple()
+                    + "," + pd.isMandatory()
+                    + "," + pd.isAutoCreated()
+                    + "," + pd.isProtected()
+                    + "," + pd.getOnParentVersion());
+        }
+        final NodeDefinition[] children = definition.getDeclaredChildNodeDefinitions();
+        for (NodeDefinition nd : children == null ? new NodeDefinition[0] : children) {
+            final String[] required = nd.getRequiredPrimaryTypeNames();
+            // unless declared otherwise, child nodes of any type are allowed
+            final List<String> requiredTypes =
+                    new ArrayList<>(Arrays.asList(required == null ? new String[] {NT_BASE} : required));
+            requiredTypes.sort(null);
+            signature.add("child=" + nd.getName()
+                    + "," + requiredTypes
+                    + "," + nd.getDefaultPrimaryTypeName()
+                    + "," + nd.allowsSameNameSiblings()
+                    + "," + nd.isMandatory()
+                    + "," + nd.isAutoCreated()
+                    + "," + nd.isProtected()
+                    + "," + nd.getOnParentVersion());
+        }
+        return signature;
+    }
+}
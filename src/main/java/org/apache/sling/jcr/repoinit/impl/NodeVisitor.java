@@ -18,13 +18,15 @@
  */
 package org.apache.sling.jcr.repoinit.impl;
 
+import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.nodetype.ConstraintViolationException;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.sling.repoinit.parser.operations.AddMixins;
 import org.apache.sling.repoinit.parser.operations.CreatePath;
@@ -34,6 +36,7 @@ import org.apache.sling.repoinit.parser.operations.PropertyLine;
 import org.apache.sling.repoinit.parser.operations.RemoveMixins;
 import org.apache.sling.repoinit.parser.operations.SetProperties;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,14 +48,17 @@ public class NodeVisitor extends DoNothingVisitor {
     private static final Logger slog = LoggerFactory.getLogger(NodeVisitor.class);
 
     /**
-     * Create a visitor using the supplied JCR Session.
+     * Create a visitor using the supplied session context.
      *
-     * @param s must have sufficient rights to create nodes
+     * @param context the session context, the session must have sufficient rights to create nodes
      */
-    protected NodeVisitor(Session s) {
-        super(s);
+    protected NodeVisitor(SessionContext context) {
+        super(context);
     }
 
+    // the changes made by the path creation statement(s) which are currently applied
+    private int changes;
+
     @Override
     public void visitEnsureNodes(EnsureNodes en) {
         createNodes(en.getDefinitions(), en.getPropertyLines(), true);
@@ -63,71 +69,194 @@ public class NodeVisitor extends DoNothingVisitor {
         createNodes(cp.getDefinitions(), cp.getPropertyLines(), false);
     }
 
+    /**
+     * Apply a sequence of {@code create path} statements at once: their paths are merged into a
+     * {@link PathTree}, which is created in a single depth-first pass. A statement which defines other types
+     * for a node than an earlier one starts a new tree, which is created after the earlier ones, so that the
+     * statements are applied in order. Property lines are only supported for the last statement, as they are
+     * set after all nodes were created.
+     *
+     * @param ops the {@link CreatePath} operations, in statement order
+     * @param attempted receives each statement before one of its nodes is created, and the last statement
+     *      before its properties are set and the changes are saved, so that a failure can be attributed to it
+     */
+    void createPaths(@NotNull List<CreatePath> ops, @NotNull Consumer<CreatePath> attempted) {
+        changes = 0;
+        final PathTrie.Entry root = getRootEntry();
+        PathTree tree = new PathTree();
+        int statements = 0;
+        List<PropertyLine> propertyLines = Collections.emptyList();
+        List<PathSegmentDefinition> leaf = Collections.emptyList();
+        for (CreatePath op : ops) {
+            leaf = op.getDefinitions();
+            propertyLines = op.getPropertyLines();
+            final String conflict = tree.findConflict(leaf);
+            if (conflict != null) {
+                log.warn("{} defines {}, it is applied after the earlier statements", op, conflict);
+                statements += createTree(tree, root, attempted);
+                tree = new PathTree();
+            }
+            tree.add(op);
+        }
+        statements += createTree(tree, root, attempted);
+        attempted.accept(ops.get(ops.size() - 1));
+        finishPath(leaf, propertyLines, statements);
+    }
+
+    /** @return the number of statements of the tree */
+    private int createTree(
+            @NotNull PathTree tree, @Nullable PathTrie.Entry root, @NotNull Consumer<CreatePath> attempted) {
+        for (PathTree.PathNode node : tree.getChildren()) {
+            createTree(node, root, "", attempted);
+        }
+        return tree.getStatementCount();
+    }
+
+    private void createTree(
+            @NotNull PathTree.PathNode node,
+            @Nullable PathTrie.Entry parentEntry,
+            @NotNull String parentPath,
+            @NotNull Consumer<CreatePath> attempted) {
+        PathTrie.Entry entry = null;
+        for (int i = 0; i < node.getDefinitionCount(); i++) {
+            final PathSegmentDefinition psd = node.getDefinition(i);
+            attempted.accept(node.getStatement(i));
+            try {
+                entry = createNode(parentEntry, parentPath, psd, false);
+            } catch (Exception e) {
+                report(e, "CreatePath execution failed at " + psd + ": " + e);
+            }
+        }
+        for (PathTree.PathNode child : node.getChildren()) {
+            createTree(child, entry, node.getPath(), attempted);
+        }
+    }
+
     private void createNodes(
             List<PathSegmentDefinition> pathSegmentDefinitions, List<PropertyLine> propertyLines, boolean strict) {
         StringBuilder parentPathBuilder = new StringBuilder();
+        changes = 0;
+        // the deepest ancestor which is known to exist, null once the path leaves the known nodes
+        PathTrie.Entry parentEntry = getRootEntry();
         for (PathSegmentDefinition psd : pathSegmentDefinitions) {
-            String parentPath = parentPathBuilder.toString();
-            final String fullPath = String.format("%s/%s", parentPath, psd.getSegment());
             try {
-                final Node node;
-                if (strict) {
-                    if (session.nodeExists(fullPath)) {
-                        log.info("Node at {} already exists, checking/adjusting its types", fullPath);
-                        node = session.getNode(fullPath);
-                        if (psd.getPrimaryType() != null
-                                && !node.getPrimaryNodeType().getName().equals(psd.getPrimaryType())) {
-                            log.info("Adjusting primary type of node {} to {}", fullPath, psd.getPrimaryType());
-                            node.setPrimaryType(psd.getPrimaryType());
-                        }
-                    } else if (!session.propertyExists(fullPath)) {
-                        final Node parent = parentPath.equals("") ? session.getRootNode() : session.getNode(parentPath);
-                        log.info("Creating node {} with primary type {}", fullPath, psd.getPrimaryType());
-                        node = addChildNode(parent, psd);
+                parentEntry = createNode(parentEntry, parentPathBuilder.toString(), psd, strict);
+            } catch (Exception e) {
+                report(e, "CreatePath execution failed at " + psd + ": " + e);
+            }
+            parentPathBuilder.append("/").append(psd.getSegment());
+        }
+        finishPath(pathSegmentDefinitions, propertyLines, 1);
+    }
 
+    @Nullable
+    private PathTrie.Entry getRootEntry() {
+        try {
+            return context.getPathTrie().getRoot();
+        } catch (Exception e) {
+            report(e, "CreatePath execution failed, cannot access the root node: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Create or verify a single node of a path.
+     *
+     * @return the entry of the node if it is recorded in the {@link PathTrie}, {@code null} otherwise
+     */
+    @Nullable
+    private PathTrie.Entry createNode(
+            @Nullable PathTrie.Entry parentEntry,
+            @NotNull String parentPath,
+            @NotNull PathSegmentDefinition psd,
+            boolean strict)
+            throws RepositoryException {
+        final String fullPath = parentPath + "/" + psd.getSegment();
+        final int changesBefore = changes;
+        final PathTrie.Entry known = parentEntry != null ? parentEntry.getChild(psd.getSegment()) : null;
+        PathTrie.Entry entry = null;
+        final Node node;
+        if (strict) {
+            if (known != null || session.nodeExists(fullPath)) {
+                log.info("Node at {} already exists, checking/adjusting its types", fullPath);
+                entry = known != null ? known : addEntry(parentEntry, psd, session.getNode(fullPath));
+                node = entry != null ? entry.getNode() : session.getNode(fullPath);
+                final String primaryType = entry != null
+                        ? entry.getPrimaryType()
+                        : node.getPrimaryNodeType().getName();
+                if (psd.getPrimaryType() != null && !primaryType.equals(psd.getPrimaryType())) {
+                    if (known != null) {
+                        log.warn(
+                                "Primary type {} of node {}, which was created or verified by an earlier statement, is changed to {}",
+                                primaryType,
+                                fullPath,
+                                psd.getPrimaryType());
                     } else {
-                        throw new RepoInitException(
-                                "There is a property with the name of the to be created node already at " + fullPath
-                                        + ", therefore bailing out here as potentially not supported by the underlying JCR");
+                        log.info("Adjusting primary type of node {} to {}", fullPath, psd.getPrimaryType());
                     }
-                } else {
-                    if (session.itemExists(fullPath)) {
-                        log.info(
-                                "Path already exists, nothing to do (and not checking its primary type for now): {}",
-                                fullPath);
-                        node = null;
-                    } else {
-                        final Node parent = parentPath.equals("") ? session.getRootNode() : session.getNode(parentPath);
-                        log.info("Creating node {} with primary type {}", fullPath, psd.getPrimaryType());
-                        node = addChildNode(parent, psd);
+                    node.setPrimaryType(psd.getPrimaryType());
+                    if (entry != null) {
+                        entry.setPrimaryType(psd.getPrimaryType());
                     }
+                    changes++;
                 }
+            } else if (!session.propertyExists(fullPath)) {
+                log.info("Creating node {} with primary type {}", fullPath, psd.getPrimaryType());
+                node = addChildNode(getParentNode(parentEntry, parentPath), psd);
+                entry = addEntry(parentEntry, psd, node);
+                changes++;
 
-                if (node != null) {
-                    List<String> mixins = psd.getMixins();
-                    if (mixins != null) {
-                        log.info("Adding mixins {} to node {}", mixins, fullPath);
-                        for (String mixin : mixins) {
-                            node.addMixin(mixin);
-                        }
-                    }
+            } else {
+                throw new RepoInitException("There is a property with the name of the to be created node already at "
+                        + fullPath + ", therefore bailing out here as potentially not supported by the underlying JCR");
+            }
+        } else {
+            if (known != null || session.itemExists(fullPath)) {
+                log.info(
+                        "Path already exists, nothing to do (and not checking its primary type for now): {}", fullPath);
+                if (known != null) {
+                    entry = known;
+                } else if (parentEntry != null) {
+                    final Item item = session.getItem(fullPath);
+                    entry = item.isNode() ? addEntry(parentEntry, psd, (Node) item) : null;
                 }
-            } catch (Exception e) {
-                report(e, "CreatePath execution failed at " + psd + ": " + e);
+                node = null;
+            } else {
+                log.info("Creating node {} with primary type {}", fullPath, psd.getPrimaryType());
+                node = addChildNode(getParentNode(parentEntry, parentPath), psd);
+                entry = addEntry(parentEntry, psd, node);
+                changes++;
             }
-            parentPathBuilder.append("/").append(psd.getSegment());
         }
+
+        boolean changed = node != null && changes > changesBefore;
+        if (node != null) {
+            List<String> mixins = psd.getMixins();
+            if (mixins != null && addMixins(node, mixins, fullPath)) {
+                changes++;
+                changed = true;
+            }
+        }
+        if (changed) {
+            context.nodeChanged();
+        }
+        return entry;
+    }
+
+    private void finishPath(List<PathSegmentDefinition> leaf, List<PropertyLine> propertyLines, int operations) {
         if (!propertyLines.isEmpty()) {
+            StringBuilder path = new StringBuilder();
+            for (PathSegmentDefinition psd : leaf) {
+                path.append("/").append(psd.getSegment());
+            }
             // delegate to the NodePropertiesVisitor to set the properties
-            SetProperties sp =
-                    new SetProperties(Collections.singletonList(parentPathBuilder.toString()), propertyLines);
-            NodePropertiesVisitor npv = new NodePropertiesVisitor(session);
+            SetProperties sp = new SetProperties(Collections.singletonList(path.toString()), propertyLines);
+            NodePropertiesVisitor npv = new NodePropertiesVisitor(context);
             npv.visitSetProperties(sp);
+            changes += propertyLines.size();
         }
         try {
-            if (session.hasPendingChanges()) {
-                session.save();
-            }
+            context.batchSave(operations, changes);
         } catch (Exception e) {
             report(e, "Session.save failed: " + e);
         }
@@ -143,12 +272,8 @@ public class NodeVisitor extends DoNothingVisitor {
                         log.warn("Path does not exist, not adding mixins: {}", absPath);
                     } else {
                         List<String> mixins = am.getMixins();
-                        if (mixins != null) {
-                            Node node = session.getNode(absPath);
-                            log.info("Adding mixins {} to node {}", mixins, absPath);
-                            for (String mixin : mixins) {
-                                node.addMixin(mixin);
-                            }
+                        if (mixins != null && addMixins(session.getNode(absPath), mixins, absPath)) {
+                            context.nodeChanged();
                         }
                     }
                 } catch (Exception e) {
@@ -168,12 +293,8 @@ public class NodeVisitor extends DoNothingVisitor {
                         log.warn("Path does not exist, not removing mixins: {}", absPath);
                     } else {
                         List<String> mixins = rm.getMixins();
-                        if (mixins != null) {
-                            Node node = session.getNode(absPath);
-                            log.info("Removing mixins {} from node {}", mixins, absPath);
-                            for (String mixin : mixins) {
-                                node.removeMixin(mixin);
-                            }
+                        if (mixins != null && removeMixins(session.getNode(absPath), mixins, absPath)) {
+                            context.nodeChanged();
                         }
                     }
                 } catch (Exception e) {
@@ -183,6 +304,62 @@ public class NodeVisitor extends DoNothingVisitor {
         }
     }
 
+    /**
+     * Add the mixins which are not yet effective on the node, as adding them again would still modify
+     * the {@code jcr:mixinTypes} property.
+     *
+     * @return {@code true} if at least one mixin was added
+     */
+    private boolean addMixins(@NotNull Node node, @NotNull List<String> mixins, @NotNull String path)
+            throws RepositoryException {
+        final List<String> missing = new ArrayList<>(mixins.size());
+        for (String mixin : mixins) {
+            if (!node.isNodeType(mixin)) {
+                missing.add(mixin);
+            }
+        }
+        if (missing.isEmpty()) {
+            log.info("Mixins {} are already present on node {}, nothing to do", mixins, path);
+            return false;
+        }
+        log.info("Adding mixins {} to node {}", missing, path);
+        for (String mixin : missing) {
+            node.addMixin(mixin);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the mixins from the node, like {@code removeMixin} this fails for a mixin which does not exist
+     * or is not declared on the node.
+     *
+     * @return {@code true} if at least one mixin was removed
+     */
+    private boolean removeMixins(@NotNull Node node, @NotNull List<String> mixins, @NotNull String path)
+            throws RepositoryException {
+        log.info("Removing mixins {} from node {}", mixins, path);
+        for (String mixin : mixins) {
+            node.removeMixin(mixin);
+        }
+        return !mixins.isEmpty();
+    }
+
+    @NotNull
+    private Node getParentNode(@Nullable PathTrie.Entry parentEntry, @NotNull String parentPath)
+            throws RepositoryException {
+        if (parentEntry != null) {
+            return parentEntry.getNode();
+        }
+        return parentPath.equals("") ? session.getRootNode() : session.getNode(parentPath);
+    }
+
+    @Nullable
+    private static PathTrie.Entry addEntry(
+            @Nullable PathTrie.Entry parentEntry, @NotNull PathSegmentDefinition psd, @NotNull Node node)
+            throws RepositoryException {
+        return parentEntry != null ? parentEntry.addChild(psd.getSegment(), node) : null;
+    }
+
     @NotNull
     private static Node addChildNode(@NotNull Node parent, @NotNull PathSegmentDefinition psd)
             throws RepositoryException {
@@ -18,11 +18,6 @@
  */
 package org.apache.sling.jcr.repoinit.impl;
 
-import javax.jcr.Session;
-
-import java.io.StringReader;
-
-import org.apache.jackrabbit.commons.cnd.CndImporter;
 import org.apache.sling.repoinit.parser.operations.RegisterNodetypes;
 
 /** OperationVisitor which processes only operations related to
@@ -31,12 +26,12 @@ import org.apache.sling.repoinit.parser.operations.RegisterNodetypes;
  */
 class NodetypesVisitor extends DoNothingVisitor {
 
-    /** Create a visitor using the supplied JCR Session.
-     * @param s must have sufficient rights to create users
+    /** Create a visitor using the supplied session context.
+     * @param context the session context, the session must have sufficient rights to create users
      *      and set ACLs.
      */
-    public NodetypesVisitor(Session s) {
-        super(s);
+    public NodetypesVisitor(SessionContext context) {
+        super(context);
     }
 
     @Override
@@ -45,7 +40,7 @@ class NodetypesVisitor extends DoNothingVisitor {
             if (log.isInfoEnabled()) {
                 log.info("Registering nodetypes from {}", excerpt(rn.getCndStatements(), 100));
             }
-            CndImporter.registerNodeTypes(new StringReader(rn.getCndStatements()), session);
+            context.registerNodeTypes(rn);
         } catch (Exception e) {
             report(e, "Unable to register nodetypes from " + rn);
         }
@@ -0,0 +1,599 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+import org.apache.sling.repoinit.parser.operations.AddGroupMembers;
+import org.apache.sling.repoinit.parser.operations.AddMixins;
+import org.apache.sling.repoinit.parser.operations.CreateGroup;
+import org.apache.sling.repoinit.parser.operations.CreatePath;
+import org.apache.sling.repoinit.parser.operations.CreateServiceUser;
+import org.apache.sling.repoinit.parser.operations.CreateUser;
+import org.apache.sling.repoinit.parser.operations.DeleteAclPaths;
+import org.apache.sling.repoinit.parser.operations.DeleteAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.DeleteAclPrincipals;
+import org.apache.sling.repoinit.parser.operations.DeleteGroup;
+import org.apache.sling.repoinit.parser.operations.DeleteServiceUser;
+import org.apache.sling.repoinit.parser.operations.DeleteUser;
+import org.apache.sling.repoinit.parser.operations.DisableServiceUser;
+import org.apache.sling.repoinit.parser.operations.EnsureAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.EnsureNodes;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.apache.sling.repoinit.parser.operations.OperationVisitor;
+import org.apache.sling.repoinit.parser.operations.RegisterNamespace;
+import org.apache.sling.repoinit.parser.operations.RegisterNodetypes;
+import org.apache.sling.repoinit.parser.operations.RegisterPrivilege;
+import org.apache.sling.repoinit.parser.operations.RemoveAcePaths;
+import org.apache.sling.repoinit.parser.operations.RemoveAcePrincipalBased;
+import org.apache.sling.repoinit.parser.operations.RemoveAcePrincipals;
+import org.apache.sling.repoinit.parser.operations.RemoveGroupMembers;
+import org.apache.sling.repoinit.parser.operations.RemoveMixins;
+import org.apache.sling.repoinit.parser.operations.SetAclPaths;
+import org.apache.sling.repoinit.parser.operations.SetAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.SetAclPrincipals;
+import org.apache.sling.repoinit.parser.operations.SetProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Dispatches each operation to the single visitor which handles its type.
+ * <p>
+ * The operations are classified once, when the dispatcher is created, and grouped
+ * into the phases which define the execution order: namespaces first, then nodetypes
+ * and privileges (both use namespaces), and finally everything else in statement order.
+ * Visitors are created lazily, so a visitor is only instantiated if the script contains
+ * operations of its type.
+ * <p>
+ * The authorizables referenced by the user statements are resolved in bulk before the first
+ * of them is applied, see {@link SessionContext#resolveAuthorizables(java.util.Collection)}.
+ */
+class OperationDispatcher {
+
+    /** The visitor types, declared in the order used by the legacy (SLING-12107) execution */
+    enum Handler {
+        NAMESPACES(0, NamespacesVisitor::new),
+        NODETYPES(1, NodetypesVisitor::new),
+        PRIVILEGES(1, PrivilegeVisitor::new),
+        USERS(2, UserVisitor::new),
+        NODES(2, NodeVisitor::new),
+        ACLS(2, AclVisitor::new),
+        GROUP_MEMBERSHIP(2, GroupMembershipVisitor::new),
+        PROPERTIES(2, NodePropertiesVisitor::new);
+
+        static final int PHASES = 3;
+
+        private final int phase;
+        private final Function<SessionContext, OperationVisitor> factory;
+
+        Handler(int phase, Function<SessionContext, OperationVisitor> factory) {
+            this.phase = phase;
+            this.factory = factory;
+        }
+
+        int getPhase() {
+            return phase;
+        }
+    }
+
+    /** How an operation takes part in the merged creation of consecutive paths */
+    enum PathCreation {
+        /** not a {@code create path} statement */
+        NONE,
+        /** a {@code create path} statement without property lines */
+        MERGEABLE,
+        /** a {@code create path} statement with property lines, which ends a sequence of merged statements */
+        LAST
+    }
+
+    private static class ClassifiedOperation {
+        final int index;
+        final Operation operation;
+        final Handler handler;
+        final PathCreation pathCreation;
+
+        ClassifiedOperation(int index, Operation operation, Handler handler, PathCreation pathCreation) {
+            this.index = index;
+            this.operation = operation;
+            this.handler = handler;
+            this.pathCreation = pathCreation;
+        }
+    }
+
+    private final SessionContext context;
+    private final List<List<ClassifiedOperation>> phases = new ArrayList<>(Handler.PHASES);
+    private final Map<Handler, OperationVisitor> visitors = new EnumMap<>(Handler.class);
+    private final int operationCount;
+    private Set<String> authorizableIds;
+    private IntConsumer checkpointListener;
+    private int savedOperations;
+    private Operation lastAttemptedOperation;
+
+    OperationDispatcher(@NotNull Session session, @NotNull List<Operation> ops) {
+        this(new SessionContext(session), ops);
+    }
+
+    OperationDispatcher(@NotNull SessionContext context, @NotNull List<Operation> ops) {
+        this.context = context;
+        for (int i = 0; i < Handler.PHASES; i++) {
+            phases.add(new ArrayList<>());
+        }
+        final Classifier classifier = new Classifier();
+        for (int i = 0; i < ops.size(); i++) {
+            final Operation op = ops.get(i);
+            final Handler handler = classifier.classify(op);
+            phases.get(handler.getPhase()).add(new ClassifiedOperation(i, op, handler, classifier.getPathCreation()));
+        }
+        operationCount = ops.size();
+        authorizableIds = classifier.authorizableIds;
+    }
+
+    /**
+     * Set the listener which is notified whenever {@link #dispatch()} saved the changes of a
+     * sequence of leading operations. The listener receives the number of operations, counted
+     * from the start of the list, whose changes are persisted and do not need to be applied again.
+     * <p>
+     * The operations of the first phases are persisted once their phase ends, the operations of the
+     * last phase whenever the session is saved. The checkpoint only covers operations whose changes
+     * are neither transient nor kept in a working set, and it never moves backwards.
+     *
+     * @param checkpointListener the listener, or {@code null}
+     */
+    void setCheckpointListener(@Nullable IntConsumer checkpointListener) {
+        this.checkpointListener = checkpointListener;
+    }
+
+    /**
+     * Apply all operations phase by phase, keeping the statement order within each phase.
+     * <p>
+     * Consecutive {@code create path} and {@code ensure nodes} statements are merged and applied
+     * together, see {@link NodeVisitor#createPaths(List)}.
+     */
+    void dispatch() {
+        for (int p = 0; p < Handler.PHASES; p++) {
+            final List<ClassifiedOperation> phase = phases.get(p);
+            int i = 0;
+            int workingSetStart = 0;
+            while (i < phase.size()) {
+                final ClassifiedOperation co = phase.get(i);
+                final int end = co.pathCreation == PathCreation.NONE ? i + 1 : endOfPathCreation(phase, i);
+                if (i == 0 || co.handler != phase.get(i - 1).handler) {
+                    // the working sets keep the changes of a sequence of statements of the same type
+                    workingSetStart = i;
+                }
+                final int saves = context.getSaveCount();
+                if (end - i > 1) {
+                    applyPathCreation(phase.subList(i, end));
+                } else {
+                    apply(co);
+                }
+                if (context.getSaveCount() != saves && p == Handler.PHASES - 1) {
+                    checkpoint(indexAt(phase, getSavedPosition(i, end, workingSetStart)));
+                }
+                i = end;
+            }
+            // the node types and privileges of a phase are registered together
+            flushNodeTypes();
+            flushPrivileges();
+            if (p < Handler.PHASES - 1) {
+                // namespaces, node types and privileges do not need a save
+                checkpoint(firstIndexAfter(p));
+            }
+        }
+        final int saves = context.getSaveCount();
+        flushAcls();
+        flushMemberships();
+        saveBatchedChanges();
+        if (context.getSaveCount() != saves) {
+            checkpoint(operationCount);
+        }
+    }
+
+    /**
+     * Apply all operations grouped by visitor type, which is the execution order
+     * that was used before SLING-12107.
+     */
+    void dispatchByHandler() {
+        final Map<Handler, List<ClassifiedOperation>> byHandler = new EnumMap<>(Handler.class);
+        for (List<ClassifiedOperation> phase : phases) {
+            for (ClassifiedOperation co : phase) {
+                byHandler.computeIfAbsent(co.handler, h -> new ArrayList<>()).add(co);
+            }
+        }
+        for (List<ClassifiedOperation> handled : byHandler.values()) {
+            for (ClassifiedOperation co : handled) {
+                apply(co);
+            }
+        }
+        flushNodeTypes();
+        flushPrivileges();
+        flushAcls();
+        flushMemberships();
+        saveBatchedChanges();
+    }
+
+    /**
+     * @return the session context shared by all visitors
+     */
+    @NotNull
+    SessionContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return the operation that was dispatched last, or {@code null} if none was dispatched yet
+     */
+    @Nullable
+    Operation getLastAttemptedOperation() {
+        return lastAttemptedOperation;
+    }
+
+    /**
+     * @return the number of visitors that were created so far
+     */
+    int getVisitorCount() {
+        return visitors.size();
+    }
+
+    private void apply(ClassifiedOperation co) {
+        lastAttemptedOperation = co.operation;
+        if (co.handler.getPhase() != Handler.NODETYPES.getPhase()) {
+            // node types and privileges are kept in their working sets until their phase ends
+            flushNodeTypes();
+            flushPrivileges();
+        }
+        if (co.handler != Handler.ACLS) {
+            // path-based ACLs are kept in the working set for a sequence of ACL statements only
+            flushAcls();
+        }
+        if (co.handler != Handler.GROUP_MEMBERSHIP) {
+            // same for the membership changes of a sequence of group membership statements
+            flushMemberships();
+        }
+        if (co.handler == Handler.USERS) {
+            resolveAuthorizables();
+        }
+        co.operation.accept(visitors.computeIfAbsent(co.handler, h -> h.factory.apply(context)));
+    }
+
+    /**
+     * Resolve the authorizables referenced by all user statements in bulk, before the first one is applied.
+     */
+    private void resolveAuthorizables() {
+        if (authorizableIds == null) {
+            return;
+        }
+        try {
+            context.resolveAuthorizables(authorizableIds);
+        } catch (RepositoryException e) {
+            throw new RepoInitException("Failed to resolve authorizables " + authorizableIds + ": " + e, e);
+        } finally {
+            authorizableIds = null;
+        }
+    }
+
+    /**
+     * @return the end (exclusive) of the sequence of path creation statements which can be merged with the one
+     *      at {@code start}, limited to the number of operations of a save batch
+     */
+    private int endOfPathCreation(List<ClassifiedOperation> phase, int start) {
+        final int limit = Math.min(phase.size(), start + context.getSaveBatchOperations());
+        int end = start;
+        while (end < limit && phase.get(end).pathCreation != PathCreation.NONE) {
+            if (phase.get(end++).pathCreation == PathCreation.LAST) {
+                break;
+            }
+        }
+        return end;
+    }
+
+    private void applyPathCreation(List<ClassifiedOperation> sequence) {
+        lastAttemptedOperation = sequence.get(0).operation;
+        flushNodeTypes();
+        flushPrivileges();
+        flushAcls();
+        flushMemberships();
+        final List<CreatePath> ops = new ArrayList<>(sequence.size());
+        for (ClassifiedOperation co : sequence) {
+            ops.add((CreatePath) co.operation);
+        }
+        ((NodeVisitor) visitors.computeIfAbsent(Handler.NODES, h -> h.factory.apply(context)))
+                .createPaths(ops, op -> lastAttemptedOperation = op);
+    }
+
+    /**
+     * @return the position, within the last phase, of the first operation which might not be saved
+     *      after a save that happened while applying the operations from {@code start} to {@code end}
+     */
+    private int getSavedPosition(int start, int end, int workingSetStart) {
+        if (context.hasUnflushedChanges()) {
+            // the save did not cover the statements kept in a working set
+            return workingSetStart;
+        }
+        // a save covers the operations themselves, unless they made further changes
+        return hasPendingChanges() ? start : end;
+    }
+
+    /** @return the index of the operation at {@code position} in the phase, or the operation count past its end */
+    private int indexAt(List<ClassifiedOperation> phase, int position) {
+        return position < phase.size() ? phase.get(position).index : operationCount;
+    }
+
+    /** @return the lowest index of the operations of the phases after {@code phase} */
+    private int firstIndexAfter(int phase) {
+        int index = operationCount;
+        for (int p = phase + 1; p < Handler.PHASES; p++) {
+            if (!phases.get(p).isEmpty()) {
+                index = Math.min(index, phases.get(p).get(0).index);
+            }
+        }
+        return index;
+    }
+
+    private void checkpoint(int completedOperations) {
+        if (completedOperations > savedOperations) {
+            savedOperations = completedOperations;
+            if (checkpointListener != null) {
+                checkpointListener.accept(completedOperations);
+            }
+        }
+    }
+
+    /** Changes kept in the working sets are lost on a refresh just like transient ones */
+    private boolean hasPendingChanges() {
+        if (context.hasUnflushedChanges()) {
+            return true;
+        }
+        try {
+            return context.session.hasPendingChanges();
+        } catch (RepositoryException e) {
+            return true;
+        }
+    }
+
+    private void flushNodeTypes() {
+        try {
+            context.flushNodeTypes();
+        } catch (RegistrationException e) {
+            lastAttemptedOperation = e.getOperation();
+            throw new RepoInitException(e.getMessage(), e);
+        } catch (RepositoryException e) {
+            throw new RepoInitException("Unable to register nodetypes: " + e, e);
+        }
+    }
+
+    private void flushPrivileges() {
+        try {
+            context.flushPrivileges();
+        } catch (RegistrationException e) {
+            lastAttemptedOperation = e.getOperation();
+            throw new RepoInitException(e.getMessage(), e);
+        } catch (RepositoryException e) {
+            throw new RepoInitException("Unable to register privileges: " + e, e);
+        }
+    }
+
+    private void flushAcls() {
+        try {
+            context.flushAcls();
+        } catch (RegistrationException e) {
+            lastAttemptedOperation = e.getOperation();
+            throw new RepoInitException(e.getMessage(), e);
+        } catch (RepositoryException e) {
+            throw new RepoInitException("Failed to write access control lists: " + e, e);
+        }
+    }
+
+    private void flushMemberships() {
+        try {
+            context.flushMemberships();
+        } catch (RegistrationException e) {
+            lastAttemptedOperation = e.getOperation();
+            throw new RepoInitException(e.getMessage(), e);
+        } catch (RepositoryException e) {
+            throw new RepoInitException("Failed to update group memberships: " + e, e);
+        }
+    }
+
+    private void saveBatchedChanges() {
+        try {
+            context.saveBatchedChanges();
+        } catch (RepositoryException e) {
+            throw new RepoInitException("Session.save failed: " + e, e);
+        }
+    }
+
+    /** Maps each operation type to the handler responsible for it */
+    private static class Classifier extends OperationInspector {
+
+        // the IDs of the authorizables referenced by user statements, in statement order
+        private final Set<String> authorizableIds = new LinkedHashSet<>();
+
+        private Handler handler;
+        private PathCreation pathCreation;
+
+        Handler classify(Operation op) {
+            handler = null;
+            pathCreation = PathCreation.NONE;
+            op.accept(this);
+            if (handler == null) {
+                throw new RepoInitException("Unsupported operation " + op);
+            }
+            return handler;
+        }
+
+        PathCreation getPathCreation() {
+            return pathCreation;
+        }
+
+        @Override
+        public void visitCreateServiceUser(CreateServiceUser s) {
+            handler = Handler.USERS;
+            authorizableIds.add(s.getUsername());
+        }
+
+        @Override
+        public void visitDeleteServiceUser(DeleteServiceUser s) {
+            handler = Handler.USERS;
+            authorizableIds.add(s.getUsername());
+        }
+
+        @Override
+        public void visitCreateUser(CreateUser cu) {
+            handler = Handler.USERS;
+            authorizableIds.add(cu.getUsername());
+        }
+
+        @Override
+        public void visitDeleteUser(DeleteUser u) {
+            handler = Handler.USERS;
+            authorizableIds.add(u.getUsername());
+        }
+
+        @Override
+        public void visitDisableServiceUser(DisableServiceUser dsu) {
+            handler = Handler.USERS;
+            authorizableIds.add(dsu.getUsername());
+        }
+
+        @Override
+        public void visitCreateGroup(CreateGroup g) {
+            handler = Handler.USERS;
+            authorizableIds.add(g.getGroupname());
+        }
+
+        @Override
+        public void visitDeleteGroup(DeleteGroup g) {
+            handler = Handler.USERS;
+            authorizableIds.add(g.getGroupname());
+        }
+
+        @Override
+        public void visitSetAclPrincipal(SetAclPrincipals s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitSetAclPaths(SetAclPaths s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitSetAclPrincipalBased(SetAclPrincipalBased operation) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitEnsureAclPrincipalBased(EnsureAclPrincipalBased ensureAclPrincipalBased) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitRemoveAcePrincipal(RemoveAcePrincipals s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitRemoveAcePaths(RemoveAcePaths s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitRemoveAcePrincipalBased(RemoveAcePrincipalBased s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitDeleteAclPrincipals(DeleteAclPrincipals s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitDeleteAclPaths(DeleteAclPaths s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitDeleteAclPrincipalBased(DeleteAclPrincipalBased s) {
+            handler = Handler.ACLS;
+        }
+
+        @Override
+        public void visitCreatePath(CreatePath cp) {
+            handler = Handler.NODES;
+            pathCreation = cp.getPropertyLines().isEmpty() ? PathCreation.MERGEABLE : PathCreation.LAST;
+        }
+
+        @Override
+        public void visitEnsureNodes(EnsureNodes en) {
+            // applied on its own, as it adjusts the types of nodes created by the preceding statements
+            handler = Handler.NODES;
+        }
+
+        @Override
+        public void visitAddMixins(AddMixins s) {
+            handler = Handler.NODES;
+        }
+
+        @Override
+        public void visitRemoveMixins(RemoveMixins s) {
+            handler = Handler.NODES;
+        }
+
+        @Override
+        public void visitRegisterNamespace(RegisterNamespace rn) {
+            handler = Handler.NAMESPACES;
+        }
+
+        @Override
+        public void visitRegisterNodetypes(RegisterNodetypes rn) {
+            handler = Handler.NODETYPES;
+        }
+
+        @Override
+        public void visitRegisterPrivilege(RegisterPrivilege rp) {
+            handler = Handler.PRIVILEGES;
+        }
+
+        @Override
+        public void visitAddGroupMembers(AddGroupMembers am) {
+            handler = Handler.GROUP_MEMBERSHIP;
+        }
+
+        @Override
+        public void visitRemoveGroupMembers(RemoveGroupMembers rm) {
+            handler = Handler.GROUP_MEMBERSHIP;
+        }
+
+        @Override
+        public void visitSetProperties(SetProperties sp) {
+            handler = Handler.PROPERTIES;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.sling.repoinit.parser.operations.AclLine;
+import org.apache.sling.repoinit.parser.operations.CreateGroup;
+import org.apache.sling.repoinit.parser.operations.CreateServiceUser;
+import org.apache.sling.repoinit.parser.operations.CreateUser;
+import org.apache.sling.repoinit.parser.operations.DeleteAclPaths;
+import org.apache.sling.repoinit.parser.operations.DeleteAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.DeleteAclPrincipals;
+import org.apache.sling.repoinit.parser.operations.DeleteGroup;
+import org.apache.sling.repoinit.parser.operations.DeleteServiceUser;
+import org.apache.sling.repoinit.parser.operations.DeleteUser;
+import org.apache.sling.repoinit.parser.operations.DisableServiceUser;
+import org.apache.sling.repoinit.parser.operations.EnsureAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.apache.sling.repoinit.parser.operations.RemoveAcePaths;
+import org.apache.sling.repoinit.parser.operations.RemoveAcePrincipalBased;
+import org.apache.sling.repoinit.parser.operations.RemoveAcePrincipals;
+import org.apache.sling.repoinit.parser.operations.RemoveGroupMembers;
+import org.apache.sling.repoinit.parser.operations.RemoveMixins;
+import org.apache.sling.repoinit.parser.operations.SetAclPaths;
+import org.apache.sling.repoinit.parser.operations.SetAclPrincipalBased;
+import org.apache.sling.repoinit.parser.operations.SetAclPrincipals;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Computes which operations of a script need to be applied incrementally, based on the
+ * fingerprints of the operations applied by the last successful execution of that script.
+ * <p>
+ * Only operations which are new or changed are applied, and only if they follow all previously
+ * applied statements. The delta is considered unsafe, and thus a full apply is required, if the
+ * script contains operations which delete or remove content (as skipping them might change the
+ * outcome of later statements), which includes creating authorizables with a forced path, if the
+ * relative order of the previously applied statements changed, or if a new or changed statement
+ * precedes a previously applied one, as that one might then yield a different result.
+ */
+class OperationJournal {
+
+    // the fingerprints only need to tell statements of the same script apart
+    private static final int FINGERPRINT_LENGTH = 16;
+
+    private OperationJournal() {
+        // private constructor to hide the implicit public one
+    }
+
+    /**
+     * @param op the operation
+     * @return a fingerprint of the repoinit statement of the operation
+     */
+    @NotNull
+    static String fingerprint(@NotNull Operation op) {
+        return RepoinitState.digest(op.asRepoInitString()).substring(0, FINGERPRINT_LENGTH);
+    }
+
+    /**
+     * @param ops the operations
+     * @return the fingerprints of the supplied operations, in the same order
+     */
+    @NotNull
+    static List<String> fingerprints(@NotNull List<Operation> ops) {
+        final List<String> result = new ArrayList<>(ops.size());
+        for (Operation op : ops) {
+            result.add(fingerprint(op));
+        }
+        return result;
+    }
+
+    /**
+     * Compute the operations which need to be applied.
+     *
+     * @param ops the operations of the script
+     * @param fingerprints the fingerprints of {@code ops}
+     * @param journal the fingerprints of the operations applied by the last successful execution,
+     *      or {@code null} if not available
+     * @return the new or changed operations at the end of the script, in script order, or {@code null} if all
+     *      operations need to be applied
+     */
+    @Nullable
+    static List<Operation> delta(
+            @NotNull List<Operation> ops, @NotNull List<String> fingerprints, @Nullable Collection<String> journal) {
+        if (journal == null) {
+            return null;
+        }
+        final DestructiveOperationDetector detector = new DestructiveOperationDetector();
+        for (Operation op : ops) {
+            if (detector.isDestructive(op)) {
+                return null;
+            }
+        }
+        final List<String> applied = new ArrayList<>(journal);
+        final Set<String> known = new HashSet<>(applied);
+        final List<Operation> delta = new ArrayList<>();
+        int journalIndex = 0;
+        for (int i = 0; i < ops.size(); i++) {
+            final String fingerprint = fingerprints.get(i);
+            if (!known.contains(fingerprint)) {
+                delta.add(ops.get(i));
+                continue;
+            }
+            // a known statement after a new or changed one must see the effect of it, like in a full apply
+            if (!delta.isEmpty()) {
+                return null;
+            }
+            // known statements must appear in the same relative order as before
+            while (journalIndex < applied.size() && !applied.get(journalIndex).equals(fingerprint)) {
+                journalIndex++;
+            }
+            if (journalIndex == applied.size()) {
+                return null;
+            }
+            journalIndex++;
+        }
+        return delta;
+    }
+
+    /** Detects operations which delete or remove content, or might recreate authorizables */
+    private static class DestructiveOperationDetector extends OperationInspector {
+
+        private boolean destructive;
+
+        boolean isDestructive(Operation op) {
+            destructive = false;
+            op.accept(this);
+            return destructive;
+        }
+
+        private void checkLines(Collection<AclLine> lines) {
+            for (AclLine line : lines) {
+                if (line.getAction() == AclLine.Action.REMOVE || line.getAction() == AclLine.Action.REMOVE_ALL) {
+                    destructive = true;
+                }
+            }
+        }
+
+        // authorizables with a forced path are recreated if they moved, which drops their ACLs and memberships
+        @Override
+        public void visitCreateServiceUser(CreateServiceUser s) {
+            destructive |= s.isForcedPath();
+        }
+
+        @Override
+        public void visitCreateUser(CreateUser cu) {
+            destructive |= cu.isForcedPath();
+        }
+
+        @Override
+        public void visitCreateGroup(CreateGroup g) {
+            destructive |= g.isForcedPath();
+        }
+
+        @Override
+        public void visitDeleteServiceUser(DeleteServiceUser s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitDeleteUser(DeleteUser u) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitDeleteGroup(DeleteGroup g) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitDisableServiceUser(DisableServiceUser dsu) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitDeleteAclPrincipals(DeleteAclPrincipals s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitDeleteAclPaths(DeleteAclPaths s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitDeleteAclPrincipalBased(DeleteAclPrincipalBased s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitRemoveAcePrincipal(RemoveAcePrincipals s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitRemoveAcePaths(RemoveAcePaths s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitRemoveAcePrincipalBased(RemoveAcePrincipalBased s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitRemoveGroupMembers(RemoveGroupMembers rm) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitRemoveMixins(RemoveMixins s) {
+            destructive = true;
+        }
+
+        @Override
+        public void visitSetAclPrincipal(SetAclPrincipals s) {
+            checkLines(s.getLines());
+        }
+
+        @Override
+        public void visitSetAclPaths(SetAclPaths s) {
+            checkLines(s.getLines());
+        }
+
+        @Override
+        public void visitSetAclPrincipalBased(SetAclPrincipalBased s) {
+            checkLines(s.getLines());
+        }
+
+        @Override
+        public void visitEnsureAclPrincipalBased(EnsureAclPrincipalBased s) {
+            checkLines(s.getLines());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.repoinit.parser.operations.CreatePath;
+import org.apache.sling.repoinit.parser.operations.PathSegmentDefinition;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Merges the path definitions of a sequence of {@code create path} statements into one tree, so that
+ * the nodes can be created in a single depth-first pass.
+ * <p>
+ * Each node keeps the segment definitions of all statements which refer to it, in statement order, so
+ * applying them in order yields the same result as applying the statements one by one. As {@code create path}
+ * does not change existing nodes, only the first definition of a node determines its types, so a statement
+ * which defines other types for a node than an earlier one must not be added, see {@link #findConflict(List)}.
+ * Children are kept in the order in which they were first defined, which preserves the order of sibling nodes.
+ */
+class PathTree {
+
+    private final PathNode root = new PathNode(null, "");
+
+    private int statements;
+
+    /**
+     * Add the path of a statement to the tree.
+     *
+     * @param statement the statement which defines the path
+     */
+    void add(@NotNull CreatePath statement) {
+        statements++;
+        PathNode parent = root;
+        for (PathSegmentDefinition psd : statement.getDefinitions()) {
+            final String parentPath = parent.path;
+            final PathNode node =
+                    parent.children.computeIfAbsent(psd.getSegment(), s -> new PathNode(s, parentPath + "/" + s));
+            node.definitions.add(psd);
+            node.statements.add(statement);
+            parent = node;
+        }
+    }
+
+    /**
+     * Check whether a path defines other types for one of its nodes than the statements added before.
+     *
+     * @param definitions the segment definitions of the path
+     * @return a description of the first conflicting definition, or {@code null} if there is none
+     */
+    @Nullable
+    String findConflict(@NotNull List<PathSegmentDefinition> definitions) {
+        PathNode parent = root;
+        for (PathSegmentDefinition psd : definitions) {
+            final PathNode node = parent.children.get(psd.getSegment());
+            if (node == null) {
+                return null;
+            }
+            for (PathSegmentDefinition other : node.definitions) {
+                if (psd.getPrimaryType() != null
+                        && other.getPrimaryType() != null
+                        && !psd.getPrimaryType().equals(other.getPrimaryType())) {
+                    return "primary type " + psd.getPrimaryType() + " for node " + node.path + ", defined as "
+                            + other.getPrimaryType() + " by an earlier statement";
+                }
+                if (psd.getMixins() != null
+                        && other.getMixins() != null
+                        && !new HashSet<>(psd.getMixins()).equals(new HashSet<>(other.getMixins()))) {
+                    return "mixins " + psd.getMixins() + " for node " + node.path + ", defined as " + other.getMixins()
+                            + " by an earlier statement";
+                }
+            }
+            parent = node;
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of statements added to the tree
+     */
+    int getStatementCount() {
+        return statements;
+    }
+
+    /**
+     * @return the top level nodes of the tree
+     */
+    @NotNull
+    Collection<PathNode> getChildren() {
+        return root.getChildren();
+    }
+
+    /** A node of the tree with the definitions of all statements referring to it */
+    static class PathNode {
+
+        private final String segment;
+        private final String path;
+        private final List<PathSegmentDefinition> definitions = new ArrayList<>();
+        private final List<CreatePath> statements = new ArrayList<>();
+        private final Map<String, PathNode> children = new LinkedHashMap<>();
+
+        private PathNode(@Nullable String segment, @NotNull String path) {
+            this.segment = segment;
+            this.path = path;
+        }
+
+        @NotNull
+        String getSegment() {
+            return segment;
+        }
+
+        @NotNull
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the number of segment definitions of this node
+         */
+        int getDefinitionCount() {
+            return definitions.size();
+        }
+
+        @NotNull
+        PathSegmentDefinition getDefinition(int index) {
+            return definitions.get(index);
+        }
+
+        /**
+         * @return the statement of the segment definition at {@code index}
+         */
+        @NotNull
+        CreatePath getStatement(int index) {
+            return statements.get(index);
+        }
+
+        @NotNull
+        Collection<PathNode> getChildren() {
+            return children.values();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Records the nodes which are known to exist, because they were verified or created by earlier
+ * path creation statements of the same run, so that later statements do not need to look up the same
+ * ancestors again.
+ * <p>
+ * Nodes which are removed by the operations, like the nodes of deleted or recreated authorizables, must be
+ * {@link #remove(String) removed} from the trie, together with their descendants. The same applies to the
+ * descendants of a node whose primary type is changed, see {@link Entry#setPrimaryType(String)}.
+ */
+class PathTrie {
+
+    private final Session session;
+
+    private Entry root;
+
+    private int hits;
+
+    PathTrie(@NotNull Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @return the entry of the root node
+     * @throws RepositoryException if the root node cannot be retrieved
+     */
+    @NotNull
+    Entry getRoot() throws RepositoryException {
+        if (root == null) {
+            final Node node = session.getRootNode();
+            root = new Entry(node, node.getPrimaryNodeType().getName());
+        }
+        return root;
+    }
+
+    /**
+     * Forget a node and its descendants, for instance because they were removed.
+     *
+     * @param path the absolute path of the node
+     */
+    void remove(@NotNull String path) {
+        if (path.equals("/")) {
+            root = null;
+            return;
+        }
+        final String[] segments = path.substring(1).split("/");
+        Entry parent = root;
+        for (int i = 0; parent != null && i < segments.length - 1; i++) {
+            parent = parent.children.get(segments[i]);
+        }
+        if (parent != null) {
+            parent.children.remove(segments[segments.length - 1]);
+        }
+    }
+
+    /**
+     * @return the number of lookups which were answered by the trie
+     */
+    int getHits() {
+        return hits;
+    }
+
+    /** A node which is known to exist */
+    class Entry {
+
+        private final Map<String, Entry> children = new HashMap<>();
+
+        private final Node node;
+
+        private String primaryType;
+
+        private Entry(@NotNull Node node, @NotNull String primaryType) {
+            this.node = node;
+            this.primaryType = primaryType;
+        }
+
+        /**
+         * @param name the name of the child node
+         * @return the entry of the child node, or {@code null} if it is not known to exist
+         */
+        @Nullable
+        Entry getChild(@NotNull String name) {
+            final Entry child = children.get(name);
+            if (child != null) {
+                hits++;
+            }
+            return child;
+        }
+
+        /**
+         * Record a child node which exists.
+         *
+         * @param name the name of the child node
+         * @param child the child node
+         * @return the entry of the child node
+         * @throws RepositoryException if the primary type of the node cannot be retrieved
+         */
+        @NotNull
+        Entry addChild(@NotNull String name, @NotNull Node child) throws RepositoryException {
+            final Entry entry = new Entry(child, child.getPrimaryNodeType().getName());
+            children.put(name, entry);
+            return entry;
+        }
+
+        @NotNull
+        Node getNode() {
+            return node;
+        }
+
+        @NotNull
+        String getPrimaryType() {
+            return primaryType;
+        }
+
+        /**
+         * Record a changed primary type of the node. Its descendants are forgotten, as the new type
+         * might not allow them or give them other definitions.
+         *
+         * @param primaryType the new primary type
+         */
+        void setPrimaryType(@NotNull String primaryType) {
+            this.primaryType = primaryType;
+            children.clear();
+        }
+    }
+}
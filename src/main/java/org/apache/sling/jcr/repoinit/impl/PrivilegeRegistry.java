@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.Privilege;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jackrabbit.api.JackrabbitWorkspace;
+import org.apache.jackrabbit.api.security.authorization.PrivilegeManager;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Provides the privilege manager of a {@link SessionContext}, and a snapshot of the registered privileges
+ * which is kept up to date with the privileges registered by the operations.
+ */
+class PrivilegeRegistry {
+
+    private final Session session;
+
+    private PrivilegeManager privilegeManager;
+
+    // registered privileges by name, a snapshot taken on first use
+    private Map<String, Privilege> registeredPrivileges;
+
+    PrivilegeRegistry(@NotNull Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @see SessionContext#getPrivilegeManager()
+     */
+    @NotNull
+    PrivilegeManager getPrivilegeManager() throws RepositoryException {
+        if (privilegeManager == null) {
+            AclUtil.checkState(
+                    session.getWorkspace() instanceof JackrabbitWorkspace, "A Jackrabbit Workspace is required");
+            privilegeManager = ((JackrabbitWorkspace) session.getWorkspace()).getPrivilegeManager();
+        }
+        return privilegeManager;
+    }
+
+    /**
+     * @see SessionContext#getRegisteredPrivileges()
+     */
+    @NotNull
+    Map<String, Privilege> getRegisteredPrivileges() throws RepositoryException {
+        if (registeredPrivileges == null) {
+            registeredPrivileges = new HashMap<>();
+            for (Privilege privilege : getPrivilegeManager().getRegisteredPrivileges()) {
+                registeredPrivileges.put(privilege.getName(), privilege);
+            }
+        }
+        return registeredPrivileges;
+    }
+
+    /**
+     * Record a privilege registered by the operations.
+     *
+     * @param privilege the new privilege
+     */
+    void privilegeRegistered(@NotNull Privilege privilege) {
+        if (registeredPrivileges != null) {
+            registeredPrivileges.put(privilege.getName(), privilege);
+        }
+    }
+}
@@ -18,36 +18,17 @@
  */
 package org.apache.sling.jcr.repoinit.impl;
 
-import javax.jcr.Session;
-import javax.jcr.security.AccessControlException;
-import javax.jcr.security.Privilege;
-
-import org.apache.jackrabbit.api.JackrabbitWorkspace;
 import org.apache.sling.repoinit.parser.operations.RegisterPrivilege;
 
 public class PrivilegeVisitor extends DoNothingVisitor {
-    public PrivilegeVisitor(Session session) {
-        super(session);
+    public PrivilegeVisitor(SessionContext context) {
+        super(context);
     }
 
     @Override
     public void visitRegisterPrivilege(RegisterPrivilege rp) {
         try {
-            Privilege priv = ((JackrabbitWorkspace) session.getWorkspace())
-                    .getPrivilegeManager()
-                    .getPrivilege(rp.getPrivilegeName());
-            log.info("Privilege {} already exists: {}, no changes made.", rp.getPrivilegeName(), priv);
-        } catch (AccessControlException ace) {
-            try {
-                ((JackrabbitWorkspace) session.getWorkspace())
-                        .getPrivilegeManager()
-                        .registerPrivilege(
-                                rp.getPrivilegeName(),
-                                rp.isAbstract(),
-                                rp.getDeclaredAggregateNames().toArray(new String[0]));
-            } catch (Exception ex) {
-                report(ex, "Unable to register privilege from: " + rp);
-            }
+            context.registerPrivilege(rp);
         } catch (Exception e) {
             report(e, "Unable to register privilege from: " + rp);
         }
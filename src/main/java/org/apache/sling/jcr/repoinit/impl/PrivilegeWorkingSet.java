@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.security.Privilege;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.repoinit.parser.operations.RegisterPrivilege;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the privileges of a sequence of {@code register privilege} statements, and registers
+ * them when flushed.
+ * <p>
+ * Privileges are checked against a snapshot of the registered privileges, which is read once per
+ * run. The new privileges are registered in the order of their aggregates, so that an aggregate
+ * privilege can be declared before the privileges it aggregates.
+ */
+class PrivilegeWorkingSet {
+
+    private static final Logger log = LoggerFactory.getLogger(PrivilegeWorkingSet.class);
+
+    private final Map<String, RegisterPrivilege> pending = new LinkedHashMap<>();
+
+    private int registeredPrivileges;
+
+    private int existingPrivileges;
+
+    /**
+     * Record a privilege to register, unless it exists already.
+     *
+     * @param rp the privilege statement
+     * @param registered the registered privileges by name
+     */
+    void add(@NotNull RegisterPrivilege rp, @NotNull Map<String, Privilege> registered) {
+        final String name = rp.getPrivilegeName();
+        final Privilege existing = registered.get(name);
+        if (existing != null) {
+            existingPrivileges++;
+            log.info("Privilege {} already exists: {}, no changes made.", name, existing);
+        } else if (pending.containsKey(name)) {
+            log.info("Privilege {} is already declared by an earlier statement, no changes made.", name);
+        } else {
+            pending.put(name, rp);
+        }
+    }
+
+    /**
+     * Register the recorded privileges, and forget them.
+     *
+     * @param context the session context
+     * @throws RegistrationException if registering a privilege fails
+     * @throws RepositoryException if the privilege manager is not available
+     */
+    void flush(@NotNull SessionContext context) throws RepositoryException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            final List<RegisterPrivilege> ordered = new ArrayList<>(pending.size());
+            final Set<String> visited = new HashSet<>();
+            for (String name : pending.keySet()) {
+                addInAggregateOrder(name, visited, ordered);
+            }
+            for (RegisterPrivilege rp : ordered) {
+                log.info("Registering privilege from {}", rp);
+                try {
+                    context.privilegeRegistered(context.getPrivilegeManager()
+                            .registerPrivilege(
+                                    rp.getPrivilegeName(),
+                                    rp.isAbstract(),
+                                    rp.getDeclaredAggregateNames().toArray(new String[0])));
+                } catch (RepositoryException e) {
+                    throw new RegistrationException(
+                            "Unable to register privilege " + rp.getPrivilegeName() + " from \""
+                                    + rp.asRepoInitString().trim() + "\": " + e.getMessage(),
+                            rp,
+                            e);
+                }
+                registeredPrivileges++;
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * @return the number of privileges which were registered so far
+     */
+    int getRegisteredPrivileges() {
+        return registeredPrivileges;
+    }
+
+    /**
+     * @return the number of privileges which were not registered, as they already existed
+     */
+    int getExistingPrivileges() {
+        return existingPrivileges;
+    }
+
+    /** Depth-first, so that pending aggregated privileges are added before the aggregate */
+    private void addInAggregateOrder(
+            @NotNull String name, @NotNull Set<String> visited, @NotNull List<RegisterPrivilege> ordered) {
+        final RegisterPrivilege rp = pending.get(name);
+        // cycles are left to the privilege manager, which rejects them
+        if (rp == null || !visited.add(name)) {
+            return;
+        }
+        for (String aggregate : rp.getDeclaredAggregateNames()) {
+            addInAggregateOrder(aggregate, visited, ordered);
+        }
+        ordered.add(rp);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Loads repoinit references in the background, with a bounded number of threads, so that a reference
+ * can be applied while the following references are still being loaded.
+ * <p>
+ * At most {@link #MAX_THREADS} references are loaded ahead of the last retrieved one, and a result is
+ * released once it is retrieved, so that the memory used does not grow with the number of references.
+ * <p>
+ * The results are retrieved in the configured order with {@link #get(int)}, which fails with the
+ * exception of the loader, so that a failing reference fails at the same point as before.
+ *
+ * @param <T> the type of the loaded references
+ */
+class ReferencePrefetcher<T> implements AutoCloseable {
+
+    /** The maximum number of references which are loaded at the same time, or ahead of the retrieved ones */
+    static final int MAX_THREADS = 4;
+
+    /** Loads a single reference */
+    @FunctionalInterface
+    interface Loader<T> {
+        T load(@NotNull String reference) throws Exception;
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ExecutorService executor;
+
+    private final List<String> references;
+
+    private final Loader<T> loader;
+
+    /** The pending results, which are removed once retrieved */
+    private final List<CompletableFuture<T>> results;
+
+    private int submitted;
+
+    /**
+     * Start loading the first references.
+     *
+     * @param references the references, in the order in which they are applied
+     * @param loader the loader, which must be thread-safe
+     */
+    ReferencePrefetcher(@NotNull List<String> references, @NotNull Loader<T> loader) {
+        this.references = references;
+        this.loader = loader;
+        executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_THREADS, references.size())), r -> {
+            final Thread thread = new Thread(r, "repoinit-reference-loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        results = new ArrayList<>(Collections.nCopies(references.size(), null));
+        while (submitted < Math.min(MAX_THREADS, references.size())) {
+            submitNext();
+        }
+    }
+
+    private void submitNext() {
+        final String reference = references.get(submitted);
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        results.set(submitted++, result);
+        executor.execute(() -> {
+            try {
+                result.complete(loader.load(reference));
+            } catch (Throwable t) {
+                // complete in any case, as the future would be waited for forever otherwise
+                result.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Wait for a reference to be loaded, and start loading the next reference beyond the lookahead.
+     * Each reference can only be retrieved once.
+     *
+     * @param index the index of the reference
+     * @return the loaded reference
+     * @throws Exception the exception of the loader, or an {@code InterruptedIOException} if interrupted
+     */
+    T get(int index) throws Exception {
+        while (submitted <= index) {
+            submitNext();
+        }
+        final CompletableFuture<T> result = results.set(index, null);
+        if (result == null) {
+            throw new IllegalStateException("Repoinit reference " + index + " was already retrieved");
+        }
+        if (submitted < references.size()) {
+            submitNext();
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading repoinit reference " + index);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stop loading the remaining references, for instance after a reference failed.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown when flushing a working set fails to register node types or privileges, to write access
+ * control lists, or to update group members, which were recorded by an earlier statement than the
+ * one being applied.
+ */
+class RegistrationException extends RepositoryException {
+    private static final long serialVersionUID = -3349826418815208386L;
+
+    private final transient Operation operation;
+
+    RegistrationException(@NotNull String message, @NotNull Operation operation, @NotNull Throwable cause) {
+        super(message, cause);
+        this.operation = operation;
+    }
+
+    /**
+     * @return the statement which recorded the failed registration
+     */
+    @NotNull
+    Operation getOperation() {
+        return operation;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.util.Text;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps track of successfully applied repoinit scripts in a state node, so that
+ * scripts which did not change since their last successful execution can be
+ * recognized on subsequent runs.
+ * <p>
+ * Each script source (configuration PID and reference or script index) is
+ * represented by a child node of {@link #STATE_PATH}, named after the digest of the
+ * source key and the version of this bundle, so that an updated bundle applies all
+ * scripts again.
+ */
+class RepoinitState {
+
+    static final String STATE_PATH = "/var/repoinit/state";
+
+    static final String PROP_SOURCE = "source";
+    static final String PROP_DIGEST = "digest";
+    static final String PROP_JOURNAL = "journal";
+    static final String PROP_OWNER = "owner";
+    static final String PROP_VERSION = "version";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String NODE_TYPE = "nt:unstructured";
+    private static final String INTERMEDIATE_NODE_TYPE = "sling:Folder";
+
+    private final Session session;
+
+    private final String owner;
+
+    private final String version;
+
+    /** the state paths read or written by this instance, which are kept by {@link #prune()} */
+    private final Set<String> visited = new HashSet<>();
+
+    /**
+     * @param session the session used to read and store the state
+     * @param owner the configuration PID the scripts belong to
+     * @param version the version of this bundle
+     */
+    RepoinitState(@NotNull Session session, @NotNull String owner, @NotNull String version) {
+        this.session = session;
+        this.owner = owner;
+        this.version = version;
+    }
+
+    /**
+     * @param text the repoinit text
+     * @return the hex encoded digest of the supplied text
+     */
+    @NotNull
+    static String digest(@NotNull String text) {
+        try {
+            return Text.digest(DIGEST_ALGORITHM, text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm " + DIGEST_ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Computes the digest of a repoinit text while it is read, for texts which are not held in memory
+     * as a whole. The digest is the same as the one of {@link #digest(String)}.
+     * <p>
+     * Closing the reader reads the rest of the text, as the parser may stop reading early.
+     */
+    static class DigestingReader extends FilterReader {
+
+        private final MessageDigest messageDigest;
+
+        private final Writer digestWriter;
+
+        private String digest;
+
+        DigestingReader(@NotNull Reader in) {
+            super(in);
+            try {
+                messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Digest algorithm " + DIGEST_ALGORITHM + " not available", e);
+            }
+            // encodes the characters as UTF-8, like digest(String), also if surrogate pairs are split across reads
+            digestWriter = new OutputStreamWriter(
+                    new DigestOutputStream(NullOutputStream.INSTANCE, messageDigest), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c >= 0) {
+                digestWriter.write(c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            final int n = super.read(cbuf, off, len);
+            if (n > 0) {
+                digestWriter.write(cbuf, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped characters are part of the digest as well
+            final char[] buffer = new char[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException {
+            throw new IOException("mark() not supported");
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("reset() not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (digest != null) {
+                return;
+            }
+            try {
+                final char[] buffer = new char[8192];
+                while (read(buffer, 0, buffer.length) >= 0) {
+                    // only read for the digest
+                }
+                digestWriter.flush();
+                final StringBuilder sb = new StringBuilder();
+                for (byte b : messageDigest.digest()) {
+                    sb.append(String.format("%02x", b));
+                }
+                digest = sb.toString();
+            } finally {
+                super.close();
+            }
+        }
+
+        /**
+         * @return the hex encoded digest of the whole text
+         * @throws IllegalStateException if the reader was not closed yet
+         */
+        @NotNull
+        String getDigest() {
+            if (digest == null) {
+                throw new IllegalStateException("The digest is only available once the reader is closed");
+            }
+            return digest;
+        }
+    }
+
+    /**
+     * @param sourceKey identifies the source of a repoinit script
+     * @return the digest stored for the last successful execution of that source, or {@code null}
+     * @throws RepositoryException if the state cannot be read
+     */
+    @Nullable
+    String getDigest(@NotNull String sourceKey) throws RepositoryException {
+        final String path = visit(sourceKey);
+        if (session.nodeExists(path)) {
+            final Node n = session.getNode(path);
+            if (n.hasProperty(PROP_DIGEST)) {
+                return n.getProperty(PROP_DIGEST).getString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param sourceKey identifies the source of a repoinit script
+     * @return the operation fingerprints stored for the last successful execution of that source, or {@code null}
+     * @throws RepositoryException if the state cannot be read
+     * @see OperationJournal
+     */
+    @Nullable
+    List<String> getJournal(@NotNull String sourceKey) throws RepositoryException {
+        final String path = visit(sourceKey);
+        if (session.nodeExists(path)) {
+            final Node n = session.getNode(path);
+            if (n.hasProperty(PROP_JOURNAL)) {
+                final Value[] values = n.getProperty(PROP_JOURNAL).getValues();
+                final List<String> journal = new ArrayList<>(values.length);
+                for (Value v : values) {
+                    journal.add(v.getString());
+                }
+                return journal;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store the state of a successfully executed script, the change is saved immediately.
+     *
+     * @param sourceKey identifies the source of the repoinit script
+     * @param digest the digest of the script
+     * @param journal the fingerprints of the operations of the script, or {@code null} to not keep a journal
+     * @throws RepositoryException if the state cannot be stored
+     */
+    void markApplied(@NotNull String sourceKey, @NotNull String digest, @Nullable List<String> journal)
+            throws RepositoryException {
+        final Node n = getOrCreateStateNode(sourceKey);
+        n.setProperty(PROP_DIGEST, digest);
+        n.setProperty(PROP_JOURNAL, journal != null ? journal.toArray(new String[0]) : null);
+        session.save();
+    }
+
+    /**
+     * Remove the state of the scripts of the owner which were not read or written by this instance,
+     * i.e. of removed references and scripts and of earlier bundle versions. Only to be called after a run
+     * which processed all scripts of the owner, the change is saved immediately.
+     *
+     * @return the number of removed state nodes
+     * @throws RepositoryException if the state cannot be removed
+     */
+    int prune() throws RepositoryException {
+        if (!session.nodeExists(STATE_PATH)) {
+            return 0;
+        }
+        int pruned = 0;
+        for (Node n : JcrUtils.getChildNodes(session.getNode(STATE_PATH))) {
+            if (n.hasProperty(PROP_OWNER)
+                    && owner.equals(n.getProperty(PROP_OWNER).getString())
+                    && !visited.contains(n.getPath())) {
+                n.remove();
+                pruned++;
+            }
+        }
+        if (pruned > 0) {
+            session.save();
+        }
+        return pruned;
+    }
+
+    @NotNull
+    private Node getOrCreateStateNode(@NotNull String sourceKey) throws RepositoryException {
+        final String path = visit(sourceKey);
+        final Node n;
+        if (session.nodeExists(path)) {
+            n = session.getNode(path);
+        } else {
+            n = getOrCreateStateFolder().addNode(Text.getName(path), NODE_TYPE);
+        }
+        if (!n.hasProperty(PROP_SOURCE)) {
+            n.setProperty(PROP_SOURCE, sourceKey);
+            n.setProperty(PROP_OWNER, owner);
+            n.setProperty(PROP_VERSION, version);
+        }
+        return n;
+    }
+
+    /**
+     * Missing ancestors like {@code /var} are created as folders, or as unstructured nodes where
+     * {@code sling:Folder} is not registered, existing ones are left as they are.
+     */
+    @NotNull
+    private Node getOrCreateStateFolder() throws RepositoryException {
+        final String folderType = session.getWorkspace().getNodeTypeManager().hasNodeType(INTERMEDIATE_NODE_TYPE)
+                ? INTERMEDIATE_NODE_TYPE
+                : NODE_TYPE;
+        Node folder = session.getRootNode();
+        for (String name : Text.explode(STATE_PATH, '/')) {
+            folder = folder.hasNode(name) ? folder.getNode(name) : folder.addNode(name, folderType);
+        }
+        return folder;
+    }
+
+    @NotNull
+    private String visit(@NotNull String sourceKey) {
+        final String path = STATE_PATH + "/" + digest(version + ":" + sourceKey);
+        visited.add(path);
+        return path;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the texts read from HTTP repoinit reference URLs in a local directory, usually the data area of
+ * the bundle, together with their {@code ETag}, {@code Last-Modified} time and length.
+ * Texts are streamed to and from the cache files, and never held in memory as a whole.
+ * <p>
+ * A cached text is revalidated on each read with a conditional request. If the source cannot be read,
+ * the cached text is used instead, so that a temporarily unreachable source does not fail the startup.
+ * <p>
+ * Other sources like {@code file:} or {@code jar:} URLs are not cached, see {@link #isCacheable(URL)}: they
+ * are local, and their modification time does not reliably reveal changes, for example for jar entries of
+ * reproducible builds, so revalidating them would cost as much as reading them.
+ */
+class RepoinitTextCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RepoinitTextCache.class);
+
+    private static final String KEY_ALGORITHM = "SHA-256";
+
+    private static final String PROP_URL = "url";
+    private static final String PROP_ETAG = "etag";
+    private static final String PROP_LAST_MODIFIED = "lastModified";
+    private static final String PROP_LENGTH = "length";
+
+    private final File directory;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * @param directory the directory of the cached texts, which is created if needed
+     */
+    RepoinitTextCache(@NotNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param url the URL
+     * @return {@code true} if the texts of the URL are cached, which is the case for HTTP and HTTPS URLs
+     */
+    static boolean isCacheable(@NotNull URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    /**
+     * Open the text of a URL, from the cache if it is unchanged.
+     *
+     * @param url the URL, which must be {@link #isCacheable(URL) cacheable}
+     * @return a reader of the text, which the caller must close
+     * @throws IOException if reading the URL fails and no text of it is cached
+     */
+    @NotNull
+    Reader open(@NotNull URL url) throws IOException {
+        final String key = toKey(url);
+        final Path textFile = directory.toPath().resolve(key + ".txt");
+        final Entry cached = load(key, url, textFile);
+        try {
+            final Reader changed = fetch(url, key, textFile, cached);
+            if (changed != null) {
+                misses.incrementAndGet();
+                return changed;
+            }
+            hits.incrementAndGet();
+            log.debug("Repoinit statements of {} are unchanged, using the cached text", url);
+        } catch (IOException e) {
+            if (cached == null) {
+                throw e;
+            }
+            fallbacks.incrementAndGet();
+            log.warn("Cannot read {}, using the cached repoinit statements instead: {}", url, e.toString());
+        }
+        return newReader(textFile);
+    }
+
+    /**
+     * @return the number of reads which used the cached text, as the source was unchanged
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of reads which had to read the source
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of reads which used the cached text, as the source could not be read
+     */
+    long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /** @return a reader of the changed text, or {@code null} if the cached text is unchanged */
+    @Nullable
+    private Reader fetch(@NotNull URL url, @NotNull String key, @NotNull Path textFile, @Nullable Entry cached)
+            throws IOException {
+        final HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        if (cached != null) {
+            if (cached.etag != null) {
+                c.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified > 0) {
+                c.setIfModifiedSince(cached.lastModified);
+            }
+        }
+        final InputStream is = c.getInputStream();
+        boolean streamed = false;
+        try {
+            if (cached != null && c.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return null;
+            }
+            if (is == null) {
+                log.warn("Cannot get InputStream for {}", url);
+                return new StringReader("");
+            }
+            final Path tmp;
+            try {
+                Files.createDirectories(directory.toPath());
+                tmp = Files.createTempFile(directory.toPath(), key, ".tmp");
+            } catch (IOException e) {
+                log.warn("Cannot cache the repoinit statements of {}: {}", url, e.toString());
+                streamed = true;
+                return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            }
+            try {
+                // the text replaces the cached one only once it is complete, which keeps it usable as a fallback
+                final long copied;
+                try (OutputStream os = Files.newOutputStream(tmp)) {
+                    copied = IOUtils.copyLarge(is, os);
+                }
+                Files.move(tmp, textFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                storeMetadata(key, url, c.getHeaderField("ETag"), c.getLastModified(), copied);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return newReader(textFile);
+        } finally {
+            if (is != null && !streamed) {
+                is.close();
+            }
+        }
+    }
+
+    /** @return the cached entry of a URL, or {@code null} if none or if it is invalid */
+    @Nullable
+    private Entry load(@NotNull String key, @NotNull URL url, @NotNull Path textFile) {
+        final Path metadataFile = directory.toPath().resolve(key + ".properties");
+        if (!Files.isRegularFile(metadataFile) || !Files.isRegularFile(textFile)) {
+            return null;
+        }
+        try {
+            final Properties metadata = new Properties();
+            try (InputStream is = Files.newInputStream(metadataFile)) {
+                metadata.load(is);
+            }
+            // the length of the written text guards against truncated cache files, without reading them
+            final long length = Long.parseLong(metadata.getProperty(PROP_LENGTH, "-1"));
+            if (!url.toString().equals(metadata.getProperty(PROP_URL)) || length != Files.size(textFile)) {
+                log.warn("Ignoring invalid cached repoinit statements of {}", url);
+                return null;
+            }
+            return new Entry(
+                    metadata.getProperty(PROP_ETAG), Long.parseLong(metadata.getProperty(PROP_LAST_MODIFIED, "0")));
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Ignoring unreadable cached repoinit statements of {}: {}", url, e.toString());
+            return null;
+        }
+    }
+
+    /** Failing to store the metadata only means that the source is read again next time */
+    private void storeMetadata(
+            @NotNull String key, @NotNull URL url, @Nullable String etag, long lastModified, long length) {
+        final Path metadataFile = directory.toPath().resolve(key + ".properties");
+        final Properties metadata = new Properties();
+        metadata.setProperty(PROP_URL, url.toString());
+        metadata.setProperty(PROP_LENGTH, String.valueOf(length));
+        metadata.setProperty(PROP_LAST_MODIFIED, String.valueOf(lastModified));
+        if (etag != null) {
+            metadata.setProperty(PROP_ETAG, etag);
+        }
+        try {
+            final Path tmp = Files.createTempFile(directory.toPath(), key, ".tmp");
+            try {
+                try (OutputStream os = Files.newOutputStream(tmp)) {
+                    metadata.store(os, null);
+                }
+                Files.move(tmp, metadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot cache the repoinit statements of {}: {}", url, e.toString());
+        }
+    }
+
+    @NotNull
+    private static Reader newReader(@NotNull Path textFile) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(textFile), StandardCharsets.UTF_8));
+    }
+
+    /** @return the name of the cache files of a URL */
+    @NotNull
+    private static String toKey(@NotNull URL url) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(KEY_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(url.toString().getBytes(StandardCharsets.UTF_8))) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /** The attributes of a cached text and its source, which are used for revalidating it */
+    private static class Entry {
+        final String etag;
+        final long lastModified;
+
+        Entry(@Nullable String etag, long lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
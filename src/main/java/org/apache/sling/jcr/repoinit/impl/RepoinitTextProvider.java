@@ -18,23 +18,31 @@
  */
 package org.apache.sling.jcr.repoinit.impl;
 
+import java.io.BufferedReader;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.SequenceReader;
 import org.apache.sling.provisioning.model.Feature;
 import org.apache.sling.provisioning.model.Model;
 import org.apache.sling.provisioning.model.Section;
 import org.apache.sling.provisioning.model.io.ModelReader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -87,6 +95,19 @@ public class RepoinitTextProvider {
 
     private Logger log = LoggerFactory.getLogger(getClass());
 
+    private final RepoinitTextCache cache;
+
+    public RepoinitTextProvider() {
+        this(null);
+    }
+
+    /**
+     * @param cache the cache of the texts read from HTTP URLs, or {@code null} to always read them
+     */
+    RepoinitTextProvider(@Nullable RepoinitTextCache cache) {
+        this.cache = cache;
+    }
+
     static class Reference {
         final TextFormat format;
         final String modelSection;
@@ -125,51 +146,121 @@ public class RepoinitTextProvider {
     }
 
     public String getRepoinitText(String referenceString) throws IOException {
+        try (Reader reader = getRepoinitReader(referenceString)) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #getRepoinitText(String)}, which reads the repoinit statements
+     * directly from their source, without building a string of the whole text.
+     *
+     * @param referenceString the reference
+     * @return a reader of the repoinit statements, which the caller must close
+     * @throws IOException if reading the source fails
+     */
+    public Reader getRepoinitReader(String referenceString) throws IOException {
         final Reference ref = new Reference(referenceString);
         log.info("Reading repoinit statements from {}", ref);
-        final String rawText = getRawText(ref.url);
-        log.debug("Raw text from {}: \n{}", ref.url, rawText);
+        final Reader rawReader = getRawReader(ref.url);
         if (TextFormat.MODEL.equals(ref.format)) {
             log.debug("Extracting provisioning model section {}", ref.modelSection);
-            return extractFromModel(ref.url, rawText, ref.modelSection);
+            try (Reader r = rawReader) {
+                return extractFromModel(ref.url, r, ref.modelSection);
+            }
         } else {
-            return rawText;
+            return rawReader;
         }
     }
 
-    private String extractFromModel(String sourceInfo, String rawText, String modelSection) throws IOException {
-        final StringReader reader = new StringReader(rawText);
-        final Model model = ModelReader.read(reader, sourceInfo);
-        final StringBuilder sb = new StringBuilder();
+    /** The sections are passed through as they are, instead of being concatenated to a single string */
+    private Reader extractFromModel(String sourceInfo, Reader rawReader, String modelSection) throws IOException {
+        final Model model = ModelReader.read(rawReader, sourceInfo);
+        final List<Reader> parts = new ArrayList<>();
         if (modelSection == null) {
             throw new IllegalStateException("Model section name is null, cannot read model");
         }
         for (final Feature feature : model.getFeatures()) {
             for (final Section section : feature.getAdditionalSections(modelSection)) {
-                sb.append("# ")
-                        .append(modelSection)
-                        .append(" from ")
-                        .append(feature.getName())
-                        .append("\n");
-                sb.append("# ").append(section.getComment()).append("\n");
-                sb.append(section.getContents()).append("\n");
+                parts.add(new StringReader(
+                        "# " + modelSection + " from " + feature.getName() + "\n# " + section.getComment() + "\n"));
+                parts.add(new StringReader(String.valueOf(section.getContents())));
+                parts.add(new StringReader("\n"));
             }
         }
-        return sb.toString();
+        return new SequenceReader(parts);
     }
 
-    private String getRawText(String urlString) throws IOException {
-        String result = "";
+    private Reader getRawReader(String urlString) throws IOException {
         final URL url = new URL(urlString);
+        if (cache != null && RepoinitTextCache.isCacheable(url)) {
+            return cache.open(url);
+        }
         final URLConnection c = url.openConnection();
         final InputStream is = c.getInputStream();
         if (is == null) {
             log.warn("Cannot get InputStream for {}", url);
-        } else {
-            final StringWriter w = new StringWriter();
-            IOUtils.copy(is, w, StandardCharsets.UTF_8);
-            result = w.toString();
+            return new StringReader("");
+        }
+        return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Records the first failure of reading the repoinit statements. The parser treats such a failure
+     * like the end of the text, so a dropped connection would otherwise yield the operations of
+     * a truncated text, which are then applied without any error.
+     */
+    static class FailureRecordingReader extends FilterReader {
+
+        private IOException failure;
+
+        FailureRecordingReader(@NotNull Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw recordFailure(e);
+            }
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            try {
+                return super.read(cbuf, off, len);
+            } catch (IOException e) {
+                throw recordFailure(e);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                return super.skip(n);
+            } catch (IOException e) {
+                throw recordFailure(e);
+            }
+        }
+
+        /**
+         * Rethrow the first read failure, to be called once the parser has read the text.
+         *
+         * @throws IOException the first read failure, if any
+         */
+        void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private IOException recordFailure(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            return e;
         }
-        return result;
     }
 }
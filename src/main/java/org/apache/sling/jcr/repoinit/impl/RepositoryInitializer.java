@@ -21,8 +21,7 @@ package org.apache.sling.jcr.repoinit.impl;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
-import java.io.IOException;
-import java.io.StringReader;
+import java.io.File;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
@@ -32,8 +31,8 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.api.SlingRepositoryInitializer;
 import org.apache.sling.jcr.repoinit.JcrRepoInitOpsProcessor;
 import org.apache.sling.repoinit.parser.RepoInitParser;
-import org.apache.sling.repoinit.parser.RepoInitParsingException;
 import org.apache.sling.repoinit.parser.operations.Operation;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -82,9 +81,16 @@ public class RepositoryInitializer implements SlingRepositoryInitializer {
 
     private Config config;
 
+    // null if the framework provides no file system support
+    private RepoinitTextCache cache;
+
     @Activate
-    public void activate(Config config) {
+    public void activate(Config config, BundleContext bundleContext) {
         this.config = config;
+        final File cacheDirectory = bundleContext.getDataFile(RepositoryInitializerFactory.CACHE_DIRECTORY);
+        if (cacheDirectory != null) {
+            cache = new RepoinitTextCache(cacheDirectory);
+        }
         log.debug("Activated: {}", this);
     }
 
@@ -101,21 +107,30 @@ public class RepositoryInitializer implements SlingRepositoryInitializer {
             final Session s = repo.loginAdministrative(null);
             try {
                 Instant start = Instant.now();
-                final RepoinitTextProvider p = new RepoinitTextProvider();
-                for (String reference : config.references()) {
-                    try {
-                        final String repoinitText = p.getRepoinitText(reference);
-                        final List<Operation> ops;
-                        try (StringReader sr = new StringReader(repoinitText)) {
-                            ops = parser.parse(sr);
-                        }
-                        log.info("Executing {} repoinit operations from {}", ops.size(), reference);
-                        processor.apply(s, ops);
-                        if (s.hasPendingChanges()) {
-                            s.save();
+                final RepoinitTextProvider p = new RepoinitTextProvider(cache);
+                final List<String> references = Arrays.asList(config.references());
+                // all references are fetched and parsed in the background, and applied in their configured order
+                try (ReferencePrefetcher<List<Operation>> prefetcher =
+                        new ReferencePrefetcher<>(references, reference -> {
+                            try (RepoinitTextProvider.FailureRecordingReader reader =
+                                    new RepoinitTextProvider.FailureRecordingReader(p.getRepoinitReader(reference))) {
+                                final List<Operation> ops = parser.parse(reader);
+                                reader.checkFailure();
+                                return ops;
+                            }
+                        })) {
+                    for (int i = 0; i < references.size(); i++) {
+                        final String reference = references.get(i);
+                        try {
+                            final List<Operation> ops = prefetcher.get(i);
+                            log.info("Executing {} repoinit operations from {}", ops.size(), reference);
+                            processor.apply(s, ops);
+                            if (s.hasPendingChanges()) {
+                                s.save();
+                            }
+                        } catch (Exception e) {
+                            throw new RepoInitException("Error executing repoinit from " + reference, e);
                         }
-                    } catch (IOException | RuntimeException | RepositoryException | RepoInitParsingException e) {
-                        throw new RepoInitException("Error executing repoinit from " + reference, e);
                     }
                 }
                 Duration duration = Duration.between(start, Instant.now());
@@ -22,22 +22,34 @@ import javax.jcr.InvalidItemStateException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.sling.commons.metrics.MetricsService;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.api.SlingRepositoryInitializer;
 import org.apache.sling.jcr.repoinit.JcrRepoInitOpsProcessor;
 import org.apache.sling.jcr.repoinit.impl.RetryableOperation.RetryableOperationResult;
 import org.apache.sling.repoinit.parser.RepoInitParser;
+import org.apache.sling.repoinit.parser.RepoInitParsingException;
 import org.apache.sling.repoinit.parser.operations.Operation;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
 import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -80,12 +92,43 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
 
         @AttributeDefinition(name = "Scripts", description = "Contents of a repo init script.")
         String[] scripts() default {};
+
+        @AttributeDefinition(
+                name = "Skip unchanged",
+                description = "If enabled, a digest of each successfully applied reference and script is stored in the "
+                        + "repository and references or scripts whose content did not change since are neither parsed "
+                        + "nor applied again. Set the " + PROP_FORCE_FULL_RUN + " system property to true to force "
+                        + "a full run.")
+        boolean skipUnchanged() default false;
+
+        @AttributeDefinition(
+                name = "Incremental",
+                description = "If enabled, the fingerprints of the operations of each successfully applied reference "
+                        + "and script are stored in the repository and only new or changed operations are applied on "
+                        + "subsequent runs. All operations are applied if a script contains operations which delete "
+                        + "or remove content, or if the order of previously applied operations changed.")
+        boolean incremental() default false;
     }
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private static final String METRIC_REPOINIT_FAILED = RepositoryInitializerFactory.class.getName() + ".failed";
 
+    private static final String METRIC_REPOINIT_SKIPPED = RepositoryInitializerFactory.class.getName() + ".skipped";
+
+    private static final String METRIC_CACHE_HITS = RepositoryInitializerFactory.class.getName() + ".cache.hits";
+
+    private static final String METRIC_CACHE_MISSES = RepositoryInitializerFactory.class.getName() + ".cache.misses";
+
+    private static final String METRIC_CACHE_FALLBACKS =
+            RepositoryInitializerFactory.class.getName() + ".cache.fallbacks";
+
+    /** The directory in the bundle data area which holds the cached texts of the references */
+    static final String CACHE_DIRECTORY = "repoinit-cache";
+
+    /** System property which forces all references and scripts to be applied, even if they are unchanged */
+    static final String PROP_FORCE_FULL_RUN = "org.apache.sling.jcr.repoinit.forceFullRun";
+
     @Reference
     private RepoInitParser parser;
 
@@ -100,15 +143,42 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
     // assume that repoinit succeeds ... and just this to true if it fails
     private AtomicBoolean aRepoInitStatementFailed = new AtomicBoolean(false);
 
+    // the number of unchanged references and scripts which were skipped
+    private AtomicInteger skippedScripts = new AtomicInteger();
+
     private String componentId;
 
+    // the stable key of the state, null if the component is not configured through a PID
+    private String servicePid;
+
+    // part of the state keys, so that an updated bundle applies all scripts again
+    private String bundleVersion;
+
+    // null if the framework provides no file system support
+    private RepoinitTextCache cache;
+
     @Activate
-    public void activate(final RepositoryInitializerFactory.Config config, Map<String, Object> properties) {
+    public void activate(
+            final RepositoryInitializerFactory.Config config,
+            Map<String, Object> properties,
+            BundleContext bundleContext) {
         this.config = config;
         this.componentId =
                 properties.getOrDefault(ComponentConstants.COMPONENT_ID, "").toString();
+        final Object pid = properties.get(Constants.SERVICE_PID);
+        this.servicePid = pid != null ? pid.toString() : null;
+        final Version version = bundleContext.getBundle().getVersion();
+        this.bundleVersion = (version != null ? version : Version.emptyVersion).toString();
         log.debug("Activated: {}", this);
         metrics.gauge(METRIC_REPOINIT_FAILED, this::failureStateAsMetric);
+        metrics.gauge(METRIC_REPOINIT_SKIPPED, this::skippedScriptsAsMetric);
+        final File cacheDirectory = bundleContext.getDataFile(CACHE_DIRECTORY);
+        if (cacheDirectory != null) {
+            cache = new RepoinitTextCache(cacheDirectory);
+            metrics.gauge(METRIC_CACHE_HITS, cache::getHits);
+            metrics.gauge(METRIC_CACHE_MISSES, cache::getMisses);
+            metrics.gauge(METRIC_CACHE_FALLBACKS, cache::getFallbacks);
+        }
     }
 
     @Override
@@ -128,23 +198,40 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
             final Session s = repo.loginAdministrative(null);
             try {
                 Instant start = Instant.now();
+                final RepoinitState state = getState(s);
                 if (config.references() != null) {
-                    final RepoinitTextProvider p = new RepoinitTextProvider();
+                    final RepoinitTextProvider p = new RepoinitTextProvider(cache);
+                    final List<String> references = new ArrayList<>();
                     for (final String reference : config.references()) {
-                        if (reference == null || reference.trim().length() == 0) {
-                            continue;
+                        if (reference != null && reference.trim().length() > 0) {
+                            references.add(reference);
                         }
-                        final String repoinitText = p.getRepoinitText("raw:" + reference);
-                        final List<Operation> ops;
-                        try (StringReader sr = new StringReader(repoinitText)) {
-                            ops = parser.parse(sr);
+                    }
+                    // the recorded digests are read upfront, as the session must not be used by the loader threads
+                    final Map<String, String> recordedDigests = new HashMap<>();
+                    if (state != null && config.skipUnchanged() && !Boolean.getBoolean(PROP_FORCE_FULL_RUN)) {
+                        for (final String reference : references) {
+                            recordedDigests.put(reference, state.getDigest(servicePid + ":" + reference));
+                        }
+                    }
+                    // the references are fetched and parsed in the background, a few ahead of the one being applied,
+                    // and the digest of each is computed from the same text which is parsed
+                    final boolean withDigest = state != null;
+                    try (ReferencePrefetcher<ParsedReference> prefetcher = new ReferencePrefetcher<>(
+                            references, reference -> load(p, reference, withDigest, recordedDigests.get(reference)))) {
+                        for (int i = 0; i < references.size(); i++) {
+                            final String reference = references.get(i);
+                            final ParsedReference parsed = prefetcher.get(i);
+                            String sourceReference =
+                                    String.format("Configuration PID %s, reference URL %s", componentId, reference);
+                            processScript(
+                                    s,
+                                    state,
+                                    servicePid + ":" + reference,
+                                    parsed.digest,
+                                    () -> parsed.operations,
+                                    sourceReference);
                         }
-                        String sourceReference =
-                                String.format("Configuration PID %s, reference URL %s", componentId, reference);
-                        String msg = String.format(
-                                "Executing %s repoinit operations from \"%s\"", ops.size(), sourceReference);
-                        log.info(msg);
-                        applyOperations(s, ops, msg, sourceReference);
                     }
                 }
                 if (config.scripts() != null) {
@@ -153,19 +240,25 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
                         if (script == null || script.trim().length() == 0) {
                             continue;
                         }
-                        final List<Operation> ops;
-                        try (StringReader sr = new StringReader(script)) {
-                            ops = parser.parse(sr);
-                        }
                         String sourceReference =
                                 String.format("Configuration PID %s, script[%d]", componentId, scriptIndex);
-                        String msg = String.format(
-                                "Executing %s repoinit operations from \"%s\"", ops.size(), sourceReference);
-                        log.info(msg);
-                        applyOperations(s, ops, msg, sourceReference);
+                        processScript(
+                                s,
+                                state,
+                                servicePid + ":script[" + scriptIndex + "]",
+                                state != null ? RepoinitState.digest(script) : null,
+                                () -> parse(script),
+                                sourceReference);
                         scriptIndex++;
                     }
                 }
+                if (state != null) {
+                    // all references and scripts were processed, the state of any others is obsolete
+                    final int pruned = state.prune();
+                    if (pruned > 0) {
+                        log.info("Removed the state of {} obsolete references or scripts", pruned);
+                    }
+                }
                 Duration duration = Duration.between(start, Instant.now());
                 log.info("Total time for successful repoinit execution: {} miliseconds", duration.toMillis());
             } finally {
@@ -174,6 +267,125 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
         }
     }
 
+    /**
+     * @return the state used to skip unchanged scripts and operations, or {@code null} if skipping is disabled
+     *      or the configuration has no PID to key the state by
+     */
+    private RepoinitState getState(Session session) {
+        if (!config.skipUnchanged() && !config.incremental()) {
+            return null;
+        }
+        if (servicePid == null) {
+            // the component ID changes between restarts, so the state could not be found again
+            log.warn("No {} available, applying all references and scripts", Constants.SERVICE_PID);
+            return null;
+        }
+        if (Boolean.getBoolean(PROP_FORCE_FULL_RUN)) {
+            log.info("{} is set, applying all references and scripts", PROP_FORCE_FULL_RUN);
+        }
+        return new RepoinitState(session, servicePid, bundleVersion);
+    }
+
+    /**
+     * Fetch a reference once, and parse it unless it is unchanged since its last successful execution.
+     * <p>
+     * If a digest was recorded for the reference, its text is read into memory with its digest first, and
+     * only parsed if the digest differs. Otherwise the text is streamed to the parser, and through the digest
+     * if one is needed. In both cases the digest is the one of the text which is parsed and applied.
+     *
+     * @param recordedDigest the digest recorded for the last successful execution, or {@code null}
+     * @return the reference, whose operations are {@code null} if its digest matches the recorded one
+     */
+    private ParsedReference load(RepoinitTextProvider p, String reference, boolean withDigest, String recordedDigest)
+            throws IOException, RepoInitParsingException {
+        if (recordedDigest == null) {
+            return parse(p, reference, withDigest);
+        }
+        final String text;
+        final RepoinitState.DigestingReader reader =
+                new RepoinitState.DigestingReader(p.getRepoinitReader("raw:" + reference));
+        try (Reader r = reader) {
+            text = IOUtils.toString(r);
+        }
+        final String digest = reader.getDigest();
+        return new ParsedReference(digest.equals(recordedDigest) ? null : parse(text), digest);
+    }
+
+    /**
+     * The text of a reference is streamed to the parser, and through the digest if one is needed, so that the
+     * digest always describes the operations which are applied.
+     */
+    private ParsedReference parse(RepoinitTextProvider p, String reference, boolean withDigest)
+            throws IOException, RepoInitParsingException {
+        final RepoinitTextProvider.FailureRecordingReader source =
+                new RepoinitTextProvider.FailureRecordingReader(p.getRepoinitReader("raw:" + reference));
+        final RepoinitState.DigestingReader digesting = withDigest ? new RepoinitState.DigestingReader(source) : null;
+        final List<Operation> ops;
+        // closing the digesting reader reads the rest of the text, which the parser may not have read
+        try (Reader reader = digesting != null ? digesting : source) {
+            ops = parser.parse(reader);
+        }
+        // a truncated text must neither be applied nor recorded as executed
+        source.checkFailure();
+        return new ParsedReference(ops, digesting != null ? digesting.getDigest() : null);
+    }
+
+    private List<Operation> parse(String repoinitText) throws RepoInitParsingException {
+        try (StringReader sr = new StringReader(repoinitText)) {
+            return parser.parse(sr);
+        }
+    }
+
+    /**
+     * Parse and apply a single repoinit script, unless it is unchanged since its last successful execution.
+     * @param session the JCR session to use
+     * @param state the state used to skip unchanged scripts and operations, or {@code null} if skipping is disabled
+     * @param sourceKey the stable key identifying the script across restarts
+     * @param digest the digest of the text the operations are parsed from, which is recorded once they are applied,
+     *      or {@code null} if skipping is disabled
+     * @param parsed supplies the operations of the script, which are only parsed if it is not skipped
+     * @param sourceReference the reference identifying the source of the repoinit script
+     * @throws Exception if parsing or applying the script fails
+     */
+    private void processScript(
+            Session session,
+            RepoinitState state,
+            String sourceKey,
+            String digest,
+            Callable<List<Operation>> parsed,
+            String sourceReference)
+            throws Exception {
+        final boolean forceFullRun = Boolean.getBoolean(PROP_FORCE_FULL_RUN);
+        if (state != null && config.skipUnchanged() && !forceFullRun && digest.equals(state.getDigest(sourceKey))) {
+            log.info("Skipping unchanged repoinit operations from \"{}\"", sourceReference);
+            skippedScripts.incrementAndGet();
+            return;
+        }
+        final List<Operation> ops = parsed.call();
+        List<Operation> toApply = ops;
+        List<String> fingerprints = null;
+        if (state != null && config.incremental()) {
+            fingerprints = OperationJournal.fingerprints(ops);
+            final List<Operation> delta =
+                    forceFullRun ? null : OperationJournal.delta(ops, fingerprints, state.getJournal(sourceKey));
+            if (delta != null) {
+                toApply = delta;
+            }
+        }
+        String msg = toApply == ops
+                ? String.format("Executing %s repoinit operations from \"%s\"", ops.size(), sourceReference)
+                : String.format(
+                        "Executing %s new or changed of %s repoinit operations from \"%s\"",
+                        toApply.size(), ops.size(), sourceReference);
+        log.info(msg);
+        if (!toApply.isEmpty()) {
+            applyOperations(session, toApply, msg, sourceReference);
+        }
+        if (state != null) {
+            state.markApplied(sourceKey, digest, fingerprints);
+        }
+    }
+
     /**
      * Apply the operations within a session, support retries
      * @param session the JCR session to use
@@ -204,7 +416,7 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
     /**
      * Perform the operations
      * @param session the session to use
-     * @param ops the operations
+     * @param ops the operations, {@code null} is treated like an empty list
      * @param logMessage logmessage which should be printed
      * @param reference the reference identifying the source of the repoinit script
      * @param retry the retry object
@@ -212,10 +424,24 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
      */
     protected RetryableOperationResult applyOperationInternal(
             Session session, List<Operation> ops, String logMessage, String reference, RetryableOperation retry) {
+        final List<Operation> allOps = ops != null ? ops : Collections.emptyList();
+        // the number of leading operations whose changes were saved, a retry resumes from there
+        final AtomicInteger checkpoint = new AtomicInteger();
         return retry.apply(
                 () -> {
+                    final int offset = checkpoint.get();
+                    final List<Operation> remaining = allOps.subList(offset, allOps.size());
+                    if (retry.retryCount > 0) {
+                        log.info(
+                                "Retry {} replays {} of {} repoinit operations from \"{}\"",
+                                retry.retryCount,
+                                remaining.size(),
+                                allOps.size(),
+                                reference);
+                    }
                     try {
-                        processor.apply(session, ops);
+                        // processors which do not report their progress make a retry apply all operations again
+                        processor.apply(session, remaining, saved -> checkpoint.set(offset + saved));
                         if (session.hasPendingChanges()) {
                             session.save();
                         }
@@ -249,4 +475,27 @@ public class RepositoryInitializerFactory implements SlingRepositoryInitializer
     protected int failureStateAsMetric() {
         return aRepoInitStatementFailed.get() ? 1 : 0;
     }
+
+    /**
+     * return the number of unchanged references and scripts which were skipped, usable for a simple gauge metric
+     * @return the number of skipped references and scripts
+     */
+    protected int skippedScriptsAsMetric() {
+        return skippedScripts.get();
+    }
+
+    /** The operations of a reference, and the digest of the text they were parsed from */
+    private static class ParsedReference {
+
+        // null if the reference is unchanged and was not parsed
+        private final List<Operation> operations;
+
+        // null if no digest is needed
+        private final String digest;
+
+        ParsedReference(List<Operation> operations, String digest) {
+            this.operations = operations;
+            this.digest = digest;
+        }
+    }
 }
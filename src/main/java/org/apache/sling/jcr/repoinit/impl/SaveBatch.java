@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+/**
+ * Counts the operations and changes applied since the last save of a {@link SessionContext}, which
+ * saves the session once one of the thresholds of the batch is reached.
+ */
+class SaveBatch {
+
+    /** The default maximum number of operations that are applied before the session is saved */
+    static final int DEFAULT_OPERATIONS = 1000;
+
+    /** The default maximum number of changes that are applied before the session is saved */
+    static final int DEFAULT_CHANGES = 10000;
+
+    private int maxOperations = DEFAULT_OPERATIONS;
+    private int maxChanges = DEFAULT_CHANGES;
+    private int operations;
+    private int changes;
+    private int saveCount;
+    private int forcedSaves;
+
+    /**
+     * @return the maximum number of operations that are applied before the session is saved
+     */
+    int getMaxOperations() {
+        return maxOperations;
+    }
+
+    /**
+     * Configure the thresholds, values lower than 1 save after each operation.
+     *
+     * @param operations the maximum number of operations to apply before saving
+     * @param changes the maximum number of changes to apply before saving
+     */
+    void setSize(int operations, int changes) {
+        this.maxOperations = Math.max(1, operations);
+        this.maxChanges = Math.max(1, changes);
+    }
+
+    /**
+     * Register applied operations with the batch.
+     *
+     * @param operations the number of operations
+     * @param changes the number of changes made by the operations
+     * @return {@code true} if one of the thresholds is reached and the session should be saved
+     */
+    boolean add(int operations, int changes) {
+        this.operations += operations;
+        this.changes += changes;
+        return this.operations >= maxOperations || this.changes >= maxChanges;
+    }
+
+    /**
+     * @return {@code true} if operations were registered since the last save
+     */
+    boolean hasOperations() {
+        return operations > 0;
+    }
+
+    /**
+     * Start a new batch after saving.
+     *
+     * @param sessionSaved {@code true} if the session had pending changes and was saved
+     */
+    void saved(boolean sessionSaved) {
+        if (sessionSaved) {
+            saveCount++;
+        }
+        operations = 0;
+        changes = 0;
+    }
+
+    /**
+     * Record that a save, which is counted by {@link #saved(boolean)} as well, was required outside of the batch.
+     */
+    void forcedSave() {
+        forcedSaves++;
+    }
+
+    /**
+     * @return the number of times the session was saved
+     */
+    int getSaveCount() {
+        return saveCount;
+    }
+
+    /**
+     * @return the number of saves which were required outside of the batch
+     */
+    int getForcedSaves() {
+        return forcedSaves;
+    }
+}
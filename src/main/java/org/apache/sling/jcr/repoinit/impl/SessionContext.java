@@ -20,38 +20,79 @@ package org.apache.sling.jcr.repoinit.impl;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
 
+import java.io.IOException;
 import java.security.Principal;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.JackrabbitAccessControlManager;
 import org.apache.jackrabbit.api.security.authorization.PrivilegeCollection;
+import org.apache.jackrabbit.api.security.authorization.PrivilegeManager;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.AuthorizableTypeException;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.commons.cnd.ParseException;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.apache.sling.repoinit.parser.operations.RegisterNodetypes;
+import org.apache.sling.repoinit.parser.operations.RegisterPrivilege;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
- * A simple wrapper around a session, which can cache the principal lookup and resolves privilege names to
- * {@code PrivilegeCollection} objects.
+ * A simple wrapper around a session, which holds the caches and working sets shared by all visitors which
+ * apply the same list of operations:
+ * <ul>
+ * <li>the {@link AuthorizableCache} of authorizable and principal lookups,</li>
+ * <li>the {@link AccessControlCache} of privilege collections and restrictions,</li>
+ * <li>the {@link PrivilegeRegistry}, {@link NodeTypeCache} and {@link NamespaceCache} of registered definitions,</li>
+ * <li>the {@link SaveBatch}: operations which would otherwise save after each statement register their changes
+ * with {@link #batchSave(int)}, and the session is only saved once one of the configured thresholds is
+ * reached, or where a save is required for correctness,</li>
+ * <li>the {@link PathTrie} of nodes known to exist,</li>
+ * <li>if enabled, the working set of path-based access control lists, which are written once per sequence of
+ * ACL statements, the working set of group membership changes, which are applied once per group and sequence
+ * of membership statements, and the working sets of node types and privileges, which are registered once per
+ * phase.</li>
+ * </ul>
+ * The context coordinates these collaborators, for example saving the session flushes the working sets.
+ * They are internal to this package, only the session accessors and the principal and privilege
+ * lookups are public.
  */
 public class SessionContext {
 
-    JackrabbitSession session;
-    JackrabbitAccessControlManager acMgr;
-    Map<String, Principal> nameToPrincipal = new HashMap<>();
+    final JackrabbitSession session;
+    private JackrabbitAccessControlManager acMgr;
+
+    private final AuthorizableCache authorizables = new AuthorizableCache(this::getSession);
+    private final AccessControlCache accessControl = new AccessControlCache(this::getAccessControlManager);
+    private final PrivilegeRegistry privileges;
+    private final NodeTypeCache nodeTypes = new NodeTypeCache();
+    private final NamespaceCache namespaces;
+    private final SaveBatch saveBatch = new SaveBatch();
+    private PathTrie pathTrie;
+
+    private AclWorkingSet aclWorkingSet;
+    private final MembershipWorkingSet membershipWorkingSet = new MembershipWorkingSet();
+    private boolean deferMemberships;
+    private final NodeTypeWorkingSet nodeTypeWorkingSet = new NodeTypeWorkingSet();
+    private boolean deferNodeTypes;
+    private final PrivilegeWorkingSet privilegeWorkingSet = new PrivilegeWorkingSet();
+    private boolean deferPrivileges;
+
+    private int changedNodes;
 
     public SessionContext(@NotNull Session session) {
         AclUtil.checkState(session instanceof JackrabbitSession, "A Jackrabbit Session is required");
         this.session = (JackrabbitSession) session;
-        try {
-            AclUtil.checkState(
-                    session.getAccessControlManager() instanceof JackrabbitAccessControlManager,
-                    "A Jackrabbit AccessControlManager is required");
-            this.acMgr = (JackrabbitAccessControlManager) session.getAccessControlManager();
-        } catch (RepositoryException e) {
-            throw new IllegalStateException("Cannot retrieve the AccessControlManager");
-        }
+        this.privileges = new PrivilegeRegistry(session);
+        this.namespaces = new NamespaceCache(session);
     }
 
     public JackrabbitSession getSession() {
@@ -59,34 +100,545 @@ public class SessionContext {
     }
 
     public JackrabbitAccessControlManager getAccessControlManager() {
+        if (acMgr == null) {
+            try {
+                final AccessControlManager mgr = getSession().getAccessControlManager();
+                AclUtil.checkState(
+                        mgr instanceof JackrabbitAccessControlManager, "A Jackrabbit AccessControlManager is required");
+                acMgr = (JackrabbitAccessControlManager) mgr;
+            } catch (RepositoryException e) {
+                throw new IllegalStateException("Cannot retrieve the AccessControlManager");
+            }
+        }
         return acMgr;
     }
 
+    /**
+     * @return the cache of converted privileges and restrictions
+     */
+    @NotNull
+    AccessControlCache getAccessControlCache() {
+        return accessControl;
+    }
+
+    /**
+     * Resolve privilege names to a {@code PrivilegeCollection}, which is cached for the lifetime of
+     * this context (or until {@link #privilegesChanged()} is called), independent of the order of the names.
+     *
+     * @param privilegeNames the privilege names
+     * @return the privilege collection
+     * @throws RepositoryException if a privilege does not exist or the lookup fails
+     */
     public @NotNull PrivilegeCollection privilegeCollectionFromNames(@NotNull String... privilegeNames)
             throws RepositoryException {
-        return acMgr.privilegeCollectionFromNames(privilegeNames);
+        return accessControl.privilegeCollectionFromNames(privilegeNames);
     }
 
-    public @Nullable Principal getPrincipal(@NotNull String principalName) throws RepositoryException {
-        if (nameToPrincipal.containsKey(principalName)) {
-            return nameToPrincipal.get(principalName);
-        }
-        Principal p = session.getPrincipalManager().getPrincipal(principalName);
-        // Do not cache null principals
-        if (p != null) {
-            nameToPrincipal.put(principalName, p);
+    /**
+     * Forget the cached privilege collections, to be called when privileges are registered.
+     */
+    void privilegesChanged() {
+        accessControl.privilegesChanged();
+    }
+
+    /**
+     * @return the privilege manager of the session
+     * @throws RepositoryException if the privilege manager cannot be retrieved
+     */
+    @NotNull
+    PrivilegeManager getPrivilegeManager() throws RepositoryException {
+        return privileges.getPrivilegeManager();
+    }
+
+    /**
+     * @return the registered privileges by name, read once per context and updated with
+     *      {@link #privilegeRegistered(Privilege)}
+     * @throws RepositoryException if reading the privileges fails
+     */
+    @NotNull
+    Map<String, Privilege> getRegisteredPrivileges() throws RepositoryException {
+        return privileges.getRegisteredPrivileges();
+    }
+
+    /**
+     * Record a privilege registered by the operations.
+     *
+     * @param privilege the new privilege
+     */
+    void privilegeRegistered(@NotNull Privilege privilege) {
+        privileges.privilegeRegistered(privilege);
+        privilegesChanged();
+    }
+
+    /**
+     * Keep the privileges of {@code register privilege} statements in memory until {@link #flushPrivileges()}
+     * is called, instead of registering them for each statement.
+     */
+    void enablePrivilegeWorkingSet() {
+        deferPrivileges = true;
+    }
+
+    /**
+     * Register a privilege unless it exists already, either immediately or when {@link #flushPrivileges()}
+     * is called if the working set is enabled.
+     *
+     * @param rp the privilege statement
+     * @throws RepositoryException if registering the privilege fails
+     */
+    void registerPrivilege(@NotNull RegisterPrivilege rp) throws RepositoryException {
+        privilegeWorkingSet.add(rp, getRegisteredPrivileges());
+        if (!deferPrivileges) {
+            flushPrivileges();
         }
-        return p;
     }
 
+    /**
+     * Register the privileges which were recorded by {@link #registerPrivilege(RegisterPrivilege)}.
+     *
+     * @throws RepositoryException if registering a privilege fails
+     */
+    void flushPrivileges() throws RepositoryException {
+        privilegeWorkingSet.flush(this);
+    }
+
+    /**
+     * @return the number of privileges which were registered so far
+     */
+    int getRegisteredPrivilegeCount() {
+        return privilegeWorkingSet.getRegisteredPrivileges();
+    }
+
+    /**
+     * @return the number of privileges which were not registered again, as they already existed
+     */
+    int getExistingPrivilegeCount() {
+        return privilegeWorkingSet.getExistingPrivileges();
+    }
+
+    public @Nullable Principal getPrincipal(@NotNull String principalName) throws RepositoryException {
+        return authorizables.getPrincipal(principalName);
+    }
+
+    /**
+     * Same as {@link #getPrincipal(String)}, but saves the session and retries if the principal is not found.
+     * <p>
+     * The session is also saved if the principal belongs to an authorizable created since the last save:
+     * its principal is known from {@link #authorizableCreated(Authorizable)}, but principal-based access
+     * control validates principals with a query, which only finds saved authorizables. For unresolved
+     * principals the session is saved at most once, until further authorizables are created.
+     *
+     * @param principalName the principal name
+     * @return the principal or {@code null} if it does not exist
+     * @throws RepositoryException if the lookup or save fails
+     */
     public @Nullable Principal getPrincipalWithSave(@NotNull String principalName) throws RepositoryException {
         Principal principal = getPrincipal(principalName);
-        if (principal == null) {
+        if (authorizables.isSaveUseful(principalName, principal)) {
             // due to transient nature of the repo-init the principal lookup may not succeed if completed through query
             // -> save transient changes and retry principal lookup
-            session.save();
-            principal = getPrincipal(principalName);
+            final int saves = saveBatch.getSaveCount();
+            save();
+            if (saveBatch.getSaveCount() > saves) {
+                saveBatch.forcedSave();
+            }
+            if (principal == null) {
+                principal = getPrincipal(principalName);
+            }
         }
         return principal;
     }
+
+    /**
+     * Check whether a namespace registration can be skipped, because the prefix is already registered
+     * with the same URI. The registry is read once per context, registrations made by the operations
+     * must be recorded with {@link #namespaceRegistered(String, String)}.
+     *
+     * @param prefix the namespace prefix
+     * @param uri the namespace URI
+     * @return {@code true} if the registration would not change anything and is counted as skipped
+     * @throws RepositoryException if reading the namespace registry fails
+     */
+    boolean skipNamespaceRegistration(@NotNull String prefix, @NotNull String uri) throws RepositoryException {
+        return namespaces.skipNamespaceRegistration(prefix, uri);
+    }
+
+    /**
+     * Record a namespace registered by the operations.
+     *
+     * @param prefix the namespace prefix
+     * @param uri the namespace URI
+     */
+    void namespaceRegistered(@NotNull String prefix, @NotNull String uri) {
+        namespaces.namespaceRegistered(prefix, uri);
+    }
+
+    /**
+     * Lookup an authorizable by ID. The result, including a missing authorizable, is cached for the
+     * lifetime of this context, so authorizables which are created or removed by the operations must be
+     * registered with {@link #authorizableCreated(Authorizable)} and {@link #authorizableRemoved(String, String, String)}.
+     *
+     * @param id the authorizable ID
+     * @return the authorizable or {@code null} if it does not exist
+     * @throws RepositoryException if the lookup fails
+     */
+    @Nullable
+    Authorizable getAuthorizable(@NotNull String id) throws RepositoryException {
+        return authorizables.getAuthorizable(id);
+    }
+
+    /**
+     * Resolve the authorizables with the given IDs in bulk, with one authorizable query per
+     * {@link AuthorizableCache#RESOLVE_CHUNK_SIZE} IDs, and cache the ones that exist.
+     * <p>
+     * IDs which are not found are cached as missing, until an authorizable with the ID is created, so that
+     * they are not looked up individually. Like the user manager, the query ignores the case of the IDs.
+     *
+     * @param ids the IDs of the authorizables, IDs which are already cached, including the IDs of the
+     *      authorizables created or removed in this context, are skipped
+     * @throws RepositoryException if the query fails
+     */
+    void resolveAuthorizables(@NotNull Collection<String> ids) throws RepositoryException {
+        authorizables.resolveAuthorizables(ids);
+    }
+
+    /**
+     * Same as {@link #getAuthorizable(String)}, but fails if the authorizable is not of the given type.
+     *
+     * @param id the authorizable ID
+     * @param type the expected type
+     * @return the authorizable or {@code null} if it does not exist
+     * @throws AuthorizableTypeException if the authorizable exists, but is not of the expected type
+     * @throws RepositoryException if the lookup fails
+     */
+    <T extends Authorizable> @Nullable T getAuthorizable(@NotNull String id, @NotNull Class<T> type)
+            throws RepositoryException {
+        return authorizables.getAuthorizable(id, type);
+    }
+
+    /**
+     * Register an authorizable created by the operations.
+     *
+     * @param authorizable the new authorizable
+     * @throws RepositoryException if the ID cannot be retrieved
+     */
+    void authorizableCreated(@NotNull Authorizable authorizable) throws RepositoryException {
+        authorizables.authorizableCreated(authorizable);
+    }
+
+    /**
+     * Register an authorizable removed by the operations.
+     *
+     * @param id the ID of the removed authorizable
+     * @param principalName the principal name of the removed authorizable
+     * @param path the path of the node of the removed authorizable
+     */
+    void authorizableRemoved(@NotNull String id, @NotNull String principalName, @NotNull String path) {
+        authorizables.authorizableRemoved(id, principalName);
+        // the nodes of the authorizable might have been recorded by path creation statements
+        if (pathTrie != null) {
+            pathTrie.remove(path);
+        }
+    }
+
+    /**
+     * Lookup the first property definition of a node type (including the inherited ones) with the given name.
+     * The definitions are indexed once per node type and run, until {@link #nodeTypesChanged()} is called.
+     *
+     * @param nodeType the node type
+     * @param propertyName the property name, or {@code "*"} for the residual definition
+     * @return the property definition, or {@code null} if the node type does not define the property
+     */
+    @Nullable
+    PropertyDefinition getPropertyDefinition(@NotNull NodeType nodeType, @NotNull String propertyName) {
+        return nodeTypes.getPropertyDefinition(nodeType, propertyName);
+    }
+
+    /**
+     * Forget the indexed node type definitions, to be called when node types are registered.
+     */
+    void nodeTypesChanged() {
+        nodeTypes.nodeTypesChanged();
+    }
+
+    /**
+     * Keep the node types of {@code register nodetypes} statements in memory until {@link #flushNodeTypes()}
+     * is called, instead of registering them for each statement.
+     */
+    void enableNodeTypeWorkingSet() {
+        deferNodeTypes = true;
+    }
+
+    /**
+     * Register the node types of a CND which are not registered yet, either immediately or when
+     * {@link #flushNodeTypes()} is called if the working set is enabled.
+     *
+     * @param rn the statement with the CND
+     * @throws ParseException if the CND is invalid
+     * @throws IOException if reading the CND fails
+     * @throws RepositoryException if registering the node types fails
+     */
+    void registerNodeTypes(@NotNull RegisterNodetypes rn) throws ParseException, IOException, RepositoryException {
+        nodeTypeWorkingSet.add(session, rn);
+        if (!deferNodeTypes) {
+            flushNodeTypes();
+        }
+    }
+
+    /**
+     * Register the node types which were recorded by {@link #registerNodeTypes(RegisterNodetypes)}.
+     *
+     * @throws RepositoryException if registering the node types fails
+     */
+    void flushNodeTypes() throws RepositoryException {
+        nodeTypeWorkingSet.flush(this);
+    }
+
+    /**
+     * @return the number of node types which were registered so far
+     */
+    int getRegisteredNodeTypes() {
+        return nodeTypeWorkingSet.getRegisteredNodeTypes();
+    }
+
+    /**
+     * @return the number of node types which were not registered again, as they already existed
+     */
+    int getUnchangedNodeTypes() {
+        return nodeTypeWorkingSet.getUnchangedNodeTypes();
+    }
+
+    /**
+     * Register a node which was created or whose types were changed by the operations.
+     */
+    void nodeChanged() {
+        changedNodes++;
+    }
+
+    /**
+     * @return the number of nodes which were created or whose types were changed
+     */
+    int getChangedNodes() {
+        return changedNodes;
+    }
+
+    /**
+     * @return the nodes known to exist, as recorded by the path creation statements of this run
+     */
+    @NotNull
+    PathTrie getPathTrie() {
+        if (pathTrie == null) {
+            pathTrie = new PathTrie(session);
+        }
+        return pathTrie;
+    }
+
+    /**
+     * Keep path-based access control lists in memory until {@link #flushAcls()} is called, instead
+     * of writing them for each statement.
+     */
+    void enableAclWorkingSet() {
+        if (aclWorkingSet == null) {
+            aclWorkingSet = new AclWorkingSet();
+        }
+    }
+
+    /**
+     * @return the working set of path-based access control lists, or {@code null} if they are written immediately
+     */
+    @Nullable
+    AclWorkingSet getAclWorkingSet() {
+        return aclWorkingSet;
+    }
+
+    /**
+     * Write the modified access control lists of the working set, if enabled.
+     *
+     * @throws RepositoryException if writing fails
+     */
+    void flushAcls() throws RepositoryException {
+        if (aclWorkingSet != null) {
+            aclWorkingSet.flush(getAccessControlManager());
+        }
+    }
+
+    /**
+     * Keep group membership changes in memory until {@link #flushMemberships()} is called, instead
+     * of applying them for each statement.
+     */
+    void enableMembershipWorkingSet() {
+        deferMemberships = true;
+    }
+
+    /**
+     * Add members to or remove members from a group, either immediately or when the
+     * membership working set is flushed.
+     *
+     * @param group the group
+     * @param memberIds the IDs of the members
+     * @param add {@code true} to add the members, {@code false} to remove them
+     * @param statement the statement which requested the changes
+     * @throws RepositoryException if changing the members fails
+     */
+    void updateMembers(@NotNull Group group, @NotNull List<String> memberIds, boolean add, @NotNull Operation statement)
+            throws RepositoryException {
+        membershipWorkingSet.update(group, memberIds, add, statement);
+        if (!deferMemberships) {
+            flushMemberships();
+        }
+    }
+
+    /**
+     * @return the number of groups whose members were changed so far
+     */
+    int getUpdatedGroups() {
+        return membershipWorkingSet.getUpdatedGroups();
+    }
+
+    /**
+     * Apply the pending group membership changes.
+     *
+     * @throws RepositoryException if changing the members fails
+     */
+    void flushMemberships() throws RepositoryException {
+        membershipWorkingSet.flush(this);
+    }
+
+    /**
+     * @return {@code true} if the ACL or membership working sets hold changes which were not written
+     *      to the session yet
+     */
+    boolean hasUnflushedChanges() {
+        return (aclWorkingSet != null && aclWorkingSet.hasModifications()) || membershipWorkingSet.hasChanges();
+    }
+
+    /**
+     * @return the maximum number of operations that are applied before the session is saved
+     */
+    int getSaveBatchOperations() {
+        return saveBatch.getMaxOperations();
+    }
+
+    /**
+     * Configure the thresholds used by {@link #batchSave(int)}, values lower than 1 save after each operation.
+     *
+     * @param operations the maximum number of operations to apply before saving
+     * @param changes the maximum number of changes to apply before saving
+     */
+    void setSaveBatchSize(int operations, int changes) {
+        saveBatch.setSize(operations, changes);
+    }
+
+    /**
+     * Register an applied operation with the current batch, and save the session if one of
+     * the batch thresholds is reached.
+     *
+     * @param changes the number of changes made by the operation
+     * @throws RepositoryException if saving fails
+     */
+    void batchSave(int changes) throws RepositoryException {
+        batchSave(1, changes);
+    }
+
+    /**
+     * Same as {@link #batchSave(int)}, for a number of operations which were applied together.
+     *
+     * @param operations the number of operations
+     * @param changes the number of changes made by the operations
+     * @throws RepositoryException if saving fails
+     */
+    void batchSave(int operations, int changes) throws RepositoryException {
+        if (saveBatch.add(operations, changes)) {
+            save();
+        }
+    }
+
+    /**
+     * Save the session if operations registered with {@link #batchSave(int)} were not saved yet.
+     *
+     * @throws RepositoryException if saving fails
+     */
+    void saveBatchedChanges() throws RepositoryException {
+        if (hasBatchedChanges()) {
+            save();
+        }
+    }
+
+    /**
+     * @return {@code true} if operations registered with {@link #batchSave(int)} were not saved yet
+     */
+    boolean hasBatchedChanges() {
+        return saveBatch.hasOperations();
+    }
+
+    /**
+     * Save all pending changes of the session, and start a new batch.
+     *
+     * @throws RepositoryException if saving fails
+     */
+    void save() throws RepositoryException {
+        flushAcls();
+        flushMemberships();
+        final boolean pending = session.hasPendingChanges();
+        if (pending) {
+            session.save();
+        }
+        authorizables.saved();
+        saveBatch.saved(pending);
+    }
+
+    /**
+     * @return the number of times the session was saved through this context
+     */
+    int getSaveCount() {
+        return saveBatch.getSaveCount();
+    }
+
+    /**
+     * @return the number of namespaces which were registered
+     */
+    int getRegisteredNamespaces() {
+        return namespaces.getRegisteredNamespaces();
+    }
+
+    /**
+     * @return the number of namespace registrations which were skipped, as they would not change anything
+     */
+    int getSkippedNamespaces() {
+        return namespaces.getSkippedNamespaces();
+    }
+
+    /**
+     * @return the number of authorizables which were looked up individually
+     */
+    int getAuthorizableLookups() {
+        return authorizables.getAuthorizableLookups();
+    }
+
+    /**
+     * @return the number of authorizables which were resolved in bulk by {@link #resolveAuthorizables(Collection)}
+     */
+    int getResolvedAuthorizables() {
+        return authorizables.getResolvedAuthorizables();
+    }
+
+    /**
+     * @return the number of principal lookups
+     */
+    int getPrincipalLookups() {
+        return authorizables.getPrincipalLookups();
+    }
+
+    /**
+     * @return the number of principal lookups which were answered from the cache
+     */
+    int getPrincipalCacheHits() {
+        return authorizables.getPrincipalCacheHits();
+    }
+
+    /**
+     * @return the number of saves forced by {@link #getPrincipalWithSave(String)}
+     */
+    int getForcedSaves() {
+        return saveBatch.getForcedSaves();
+    }
 }
@@ -18,10 +18,13 @@
  */
 package org.apache.sling.jcr.repoinit.impl;
 
+import javax.crypto.SecretKeyFactory;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
@@ -104,10 +107,14 @@ public class UserUtil {
     }
 
     public static boolean disableUser(Session session, String id, String reason) throws RepositoryException {
+        return disableUser(getUserManager(session).getAuthorizable(id), id, reason);
+    }
+
+    static boolean disableUser(@Nullable Authorizable authorizable, String id, String reason)
+            throws RepositoryException {
         if (reason == null) {
             throw new IllegalArgumentException("reason can't be null");
         }
-        Authorizable authorizable = getUserManager(session).getAuthorizable(id);
         if (authorizable != null) {
             if (authorizable.isGroup()) {
                 throw new IllegalStateException("Can't disable a group: " + id);
@@ -120,13 +127,58 @@ public class UserUtil {
     }
 
     /** Create a user - fails if it already exists */
-    public static void createUser(Session session, String username, String password, String path)
+    public static User createUser(Session session, String username, String password, String path)
             throws RepositoryException {
         if (path == null) {
-            getUserManager(session).createUser(username, password);
+            return getUserManager(session).createUser(username, password);
         } else {
             final Principal p = new SameNamePrincipal(username);
-            getUserManager(session).createUser(username, password, p, path);
+            return getUserManager(session).createUser(username, password, p, path);
+        }
+    }
+
+    /**
+     * Create a user from an already encoded password - fails if it already exists.
+     * <p>
+     * The encoded password is passed on to the user manager with its algorithm. Oak only keeps encoded
+     * passwords as they are when importing content, and hashes the password given when creating a user,
+     * so the encoded password itself becomes the credential of the user.
+     *
+     * @param session the session
+     * @param username the ID of the user
+     * @param encoding the algorithm which was used to encode the password, like {@code SHA-256}
+     * @param hash the password hash as created by that algorithm, optionally including salt and iterations
+     * @param path the intermediate path of the user, or {@code null} for the default one
+     * @return the created user
+     * @throws IllegalArgumentException if the algorithm is not supported, as the password would then
+     *      be treated as a cleartext password
+     * @throws RepositoryException if creating the user fails
+     */
+    static @NotNull User createUserWithEncodedPassword(
+            @NotNull Session session,
+            @NotNull String username,
+            @NotNull String encoding,
+            @NotNull String hash,
+            @Nullable String path)
+            throws RepositoryException {
+        if (!isSupportedPasswordEncoding(encoding)) {
+            throw new IllegalArgumentException("Unsupported password encoding " + encoding);
+        }
+        return createUser(session, username, "{" + encoding + "}" + hash, path);
+    }
+
+    private static boolean isSupportedPasswordEncoding(@NotNull String encoding) {
+        // the algorithms supported by Oak are either message digests or (PBKDF2) secret key factories
+        try {
+            MessageDigest.getInstance(encoding);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                SecretKeyFactory.getInstance(encoding);
+                return true;
+            } catch (NoSuchAlgorithmException e2) {
+                return false;
+            }
         }
     }
 }
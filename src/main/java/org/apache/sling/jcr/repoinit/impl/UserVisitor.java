@@ -19,7 +19,6 @@
 package org.apache.sling.jcr.repoinit.impl;
 
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
@@ -46,24 +45,23 @@ import static org.apache.sling.jcr.repoinit.impl.UserUtil.getUserManager;
 class UserVisitor extends DoNothingVisitor {
 
     /**
-     * Create a visitor using the supplied JCR Session.
+     * Create a visitor using the supplied session context.
      *
-     * @param s must have sufficient rights to create users and set ACLs.
+     * @param context the session context, the session must have sufficient rights to create users and set ACLs.
      */
-    public UserVisitor(Session s) {
-        super(s);
+    public UserVisitor(SessionContext context) {
+        super(context);
     }
 
     @Override
     public void visitCreateServiceUser(CreateServiceUser s) {
         final String username = s.getUsername();
         try {
-            UserManager userManager = getUserManager(session);
-            User user = userManager.getAuthorizable(username, User.class);
+            User user = context.getAuthorizable(username, User.class);
             checkUserType(username, user, true);
             if (user == null || (s.isForcedPath() && needsRecreate(username, user, s.getPath(), "Service user"))) {
                 log.info("Creating service user {}", username);
-                userManager.createSystemUser(username, s.getPath());
+                context.authorizableCreated(getUserManager(session).createSystemUser(username, s.getPath()));
             }
         } catch (Exception e) {
             report(e, "Unable to create service user [" + username + "]:" + e);
@@ -75,7 +73,7 @@ class UserVisitor extends DoNothingVisitor {
         final String username = s.getUsername();
         log.info("Deleting service user {}", username);
         try {
-            UserUtil.deleteAuthorizable(session, username);
+            deleteAuthorizable(username);
         } catch (Exception e) {
             report(e, "Unable to delete service user [" + username + "]:" + e);
         }
@@ -85,16 +83,17 @@ class UserVisitor extends DoNothingVisitor {
     public void visitCreateGroup(CreateGroup g) {
         final String groupname = g.getGroupname();
         try {
-            UserManager userManager = getUserManager(session);
-            Group group = userManager.getAuthorizable(groupname, Group.class);
+            Group group = context.getAuthorizable(groupname, Group.class);
             String intermediatePath = g.getPath();
             if (group == null || (g.isForcedPath() && needsRecreate(groupname, group, intermediatePath, "Group"))) {
                 log.info("Creating group {}", groupname);
+                UserManager userManager = getUserManager(session);
                 if (intermediatePath == null) {
-                    userManager.createGroup(groupname);
+                    group = userManager.createGroup(groupname);
                 } else {
-                    userManager.createGroup(() -> groupname, intermediatePath);
+                    group = userManager.createGroup(() -> groupname, intermediatePath);
                 }
+                context.authorizableCreated(group);
             }
         } catch (Exception e) {
             report(e, "Unable to create group [" + groupname + "]:" + e);
@@ -106,7 +105,7 @@ class UserVisitor extends DoNothingVisitor {
         final String groupname = g.getGroupname();
         log.info("Deleting group {}", groupname);
         try {
-            if (!UserUtil.deleteAuthorizable(session, groupname)) {
+            if (!deleteAuthorizable(groupname)) {
                 log.debug("Group {} doesn't exist - assuming delete to be a noop.", groupname);
             }
         } catch (Exception e) {
@@ -118,22 +117,24 @@ class UserVisitor extends DoNothingVisitor {
     public void visitCreateUser(CreateUser u) {
         final String username = u.getUsername();
         try {
-            UserManager userManager = getUserManager(session);
-            User user = userManager.getAuthorizable(username, User.class);
+            User user = context.getAuthorizable(username, User.class);
             checkUserType(username, user, false);
             if (user == null || (u.isForcedPath() && needsRecreate(username, user, u.getPath(), "User"))) {
                 final String pwd = u.getPassword();
-                if (pwd != null) {
-                    // TODO we might revise this warning once we're able
-                    // to create users by providing their encoded password
-                    // using u.getPasswordEncoding - for now I think only cleartext works
+                if (pwd != null && u.getPasswordEncoding() != null) {
+                    // passed on with their algorithm, the user manager hashes them like any other password
+                    log.info("Creating user {} with {} encoded password", username, u.getPasswordEncoding());
+                    context.authorizableCreated(UserUtil.createUserWithEncodedPassword(
+                            session, username, u.getPasswordEncoding(), pwd, u.getPath()));
+                    return;
+                } else if (pwd != null) {
                     log.warn(
                             "Creating user {} with cleartext password - should NOT be used on production systems",
                             username);
                 } else {
                     log.info("Creating user {}", username);
                 }
-                UserUtil.createUser(session, username, pwd, u.getPath());
+                context.authorizableCreated(UserUtil.createUser(session, username, pwd, u.getPath()));
             }
         } catch (Exception e) {
             report(e, "Unable to create user [" + username + "]:" + e);
@@ -145,7 +146,7 @@ class UserVisitor extends DoNothingVisitor {
         final String username = u.getUsername();
         log.info("Deleting user {}", username);
         try {
-            if (!UserUtil.deleteAuthorizable(session, username)) {
+            if (!deleteAuthorizable(username)) {
                 log.debug("User {} doesn't exist - assuming delete to be a noop.", username);
             }
         } catch (Exception e) {
@@ -159,7 +160,7 @@ class UserVisitor extends DoNothingVisitor {
         final String reason = dsu.getReason();
         log.info("Disabling service user {} reason {}", username, reason);
         try {
-            if (!UserUtil.disableUser(session, username, reason)) {
+            if (!UserUtil.disableUser(context.getAuthorizable(username), username, reason)) {
                 log.debug("Service user {} doesn't exist - assuming disable to be a noop.", username);
             }
         } catch (Exception e) {
@@ -167,6 +168,19 @@ class UserVisitor extends DoNothingVisitor {
         }
     }
 
+    private boolean deleteAuthorizable(@NotNull String id) throws RepositoryException {
+        final Authorizable authorizable = context.getAuthorizable(id);
+        if (authorizable != null) {
+            final String principalName = authorizable.getPrincipal().getName();
+            final String path = authorizable.getPath();
+            authorizable.remove();
+            context.authorizableRemoved(id, principalName, path);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
     private void checkUserType(@NotNull String id, @Nullable User user, boolean expectedSystemUser) {
         if (user != null && user.isSystemUser() != expectedSystemUser) {
             String msg = (expectedSystemUser)
@@ -192,7 +206,9 @@ class UserVisitor extends DoNothingVisitor {
                         id,
                         path,
                         intermediatePath);
+                final String principalName = authorizable.getPrincipal().getName();
                 authorizable.remove();
+                context.authorizableRemoved(id, principalName, path);
                 return true;
             } else {
                 log.info(
@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.UUID;
 
+import ch.qos.logback.classic.Level;
 import org.apache.sling.jcr.repoinit.impl.RepoInitException;
 import org.apache.sling.jcr.repoinit.impl.TestUtil;
 import org.apache.sling.repoinit.parser.RepoInitParsingException;
@@ -156,6 +157,28 @@ public class CreatePathsTest {
         U.assertNodeExists("/thirteen/fourteen/fifteen", "nt:unstructured", Collections.singletonList("mix:lockable"));
     }
 
+    @Test
+    public void conflictingTypesAreAppliedInStatementOrder() throws Exception {
+        try (LogCapture capture = new LogCapture("org.apache.sling.jcr.repoinit.impl.NodeVisitor", true)) {
+            U.parseAndExecute(
+                    baseCreateNodesStatement + "/conflicting/a(nt:folder)",
+                    baseCreateNodesStatement + "/conflicting/b",
+                    baseCreateNodesStatement + "/conflicting/a(nt:unstructured)");
+            if (strict) {
+                // ensure nodes adjusts the type of the existing node
+                U.assertNodeExists("/conflicting/a", "nt:unstructured");
+            } else {
+                // create path does not change the existing node, and is not merged with the earlier statements
+                U.assertNodeExists("/conflicting/a", "nt:folder");
+                capture.assertContains(
+                        Level.WARN,
+                        "primary type nt:unstructured for node /conflicting/a",
+                        "defined as nt:folder by an earlier statement");
+            }
+            U.assertNodeExists("/conflicting/b");
+        }
+    }
+
     @Test
     public void createPathNoDefaultPrimaryType() throws Exception {
         U.adminSession.getRootNode().addNode("folder", "nt:folder");
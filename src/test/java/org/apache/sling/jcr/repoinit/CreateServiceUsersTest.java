@@ -86,6 +86,23 @@ public class CreateServiceUsersTest {
         U.assertDisabledUser("after disable user", userId, disabledReason);
     }
 
+    @Test
+    public void createWithExistingUsersAndDisableTest() throws Exception {
+        final String secondId = userId + "_2";
+        final String thirdId = userId + "_3";
+        toRemove.add(secondId);
+        toRemove.add(thirdId);
+        U.parseAndExecute("create service user " + userId + ", " + secondId);
+
+        final String disabledReason = "disabled-" + random.nextInt();
+        U.parseAndExecute(
+                "create service user " + userId + ", " + secondId + ", " + thirdId,
+                "disable service user " + secondId + " : \"" + disabledReason + "\"");
+        U.assertServiceUser("after creating users", thirdId, true);
+        U.assertEnabledUser("after creating users", userId);
+        U.assertDisabledUser("after disable user", secondId, disabledReason);
+    }
+
     @Test
     public void disableRegularUserTest() throws Exception {
         U.assertServiceUser("at start of test", userId, false);
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.Random;
 
 import org.apache.jackrabbit.api.security.user.AuthorizableTypeException;
+import org.apache.jackrabbit.oak.spi.security.user.util.PasswordUtil;
 import org.apache.sling.jcr.repoinit.impl.TestUtil;
 import org.apache.sling.jcr.repoinit.impl.UserUtil;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
@@ -33,6 +34,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -77,6 +79,34 @@ public class CreateUsersTest {
         U.assertUser("after deleting user", userId, false);
     }
 
+    @Test
+    public void createUserWithEncodedPasswordTest() throws Exception {
+        final String hash = PasswordUtil.buildPasswordHash("mypw");
+        final String encoding = hash.substring(1, hash.indexOf('}'));
+        U.parseAndExecute(
+                "create user " + userId + " with password {" + encoding + "} " + hash.substring(hash.indexOf('}') + 1));
+        U.assertUser("after creating user", userId, true);
+
+        // the user manager hashes the encoded password like any other one when creating the user
+        final String path =
+                UserUtil.getAuthorizable(U.getAdminSession(), userId).getPath();
+        final String stored =
+                U.getAdminSession().getProperty(path + "/rep:password").getString();
+        assertNotEquals(hash, stored);
+        assertTrue(PasswordUtil.isSame(stored, hash));
+    }
+
+    @Test
+    public void createUserWithUnsupportedPasswordEncodingTest() throws Exception {
+        try {
+            U.parseAndExecute("create user " + userId + " with password {NOT-AN-ALGORITHM} abc");
+            fail("Expecting failure for an unsupported password encoding");
+        } catch (RuntimeException asExpected) {
+            // all good
+        }
+        U.assertUser("after failed creation", userId, false);
+    }
+
     @Test
     public void createUserWithRelativePathTest() throws Exception {
         final String path = "testusers/folder_for_" + userId;
@@ -151,6 +181,30 @@ public class CreateUsersTest {
         U.assertUser("after creating it multiple times", userId, true);
     }
 
+    @Test
+    public void createDeleteWithDifferentCaseTest() throws Exception {
+        U.assertUser("at start of test", userId, false);
+        U.parseAndExecute("create user " + userId, "delete user " + userId.toLowerCase());
+        U.assertUser("after deleting user with a different case", userId, false);
+    }
+
+    @Test
+    public void createExistingWithDifferentCaseTest() throws Exception {
+        U.parseAndExecute("create user " + userId);
+        U.assertUser("after creating user", userId, true);
+        // the existing user is found, not created again
+        U.parseAndExecute("create user " + userId.toLowerCase());
+        U.assertUser("after creating user with a different case", userId, true);
+    }
+
+    @Test
+    public void createWithDifferentCaseAfterMissingLookupTest() throws Exception {
+        // the user is first looked up as missing, then created with a different case
+        final String lowerCase = userId.toLowerCase();
+        U.parseAndExecute("delete user " + lowerCase, "create user " + userId, "create user " + lowerCase);
+        U.assertUser("after creating user with a different case", userId, true);
+    }
+
     @Test
     public void createDeleteMultipleTest() throws Exception {
         final int n = 50;
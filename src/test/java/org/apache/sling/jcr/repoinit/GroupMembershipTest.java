@@ -72,6 +72,30 @@ public class GroupMembershipTest {
         U.assertGroupMembership(secondUserId, groupId, false);
     }
 
+    @Test
+    public void addAndRemoveMembersInOneScript() throws Exception {
+        U.parseAndExecute(
+                "add " + userId + "," + secondUserId + " to group " + groupId,
+                "remove " + secondUserId + " from group " + groupId);
+        U.assertGroupMembership(userId, groupId, true);
+        U.assertGroupMembership(secondUserId, groupId, false);
+
+        // applying the same statements again keeps the memberships
+        U.parseAndExecute(
+                "add " + userId + "," + secondUserId + " to group " + groupId,
+                "remove " + secondUserId + " from group " + groupId);
+        U.assertGroupMembership(userId, groupId, true);
+        U.assertGroupMembership(secondUserId, groupId, false);
+    }
+
+    @Test
+    public void removeNonMemberAfterAddingMember() throws Exception {
+        U.parseAndExecute(
+                "add " + userId + " to group " + groupId, "remove " + secondUserId + " from group " + groupId);
+        U.assertGroupMembership(userId, groupId, true);
+        U.assertGroupMembership(secondUserId, groupId, false);
+    }
+
     @Test
     public void addNonExistingMemberToGroup() throws Exception {
         String nonExistingUserId = userNamePrefix + "_non";
@@ -36,6 +36,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /** Test the creation of paths with specific node types */
 public class MixinsTest {
@@ -147,11 +148,24 @@ public class MixinsTest {
         U.parseAndExecute("create path /removeNonExistingMixinFromPath(nt:unstructured)");
         try {
             U.parseAndExecute("remove mixin mix:invalid from /removeNonExistingMixinFromPath");
+            fail("Expected NoSuchNodeTypeException");
         } catch (Exception e) {
             assertTrue("Expected NoSuchNodeTypeException", e.getCause() instanceof NoSuchNodeTypeException);
         }
     }
 
+    @Test
+    public void removeMixinNotOnPath() throws Exception {
+        U.parseAndExecute("create path /removeMixinNotOnPath(nt:unstructured mixin mix:referenceable)");
+        try {
+            U.parseAndExecute("remove mixin mix:lockable from /removeMixinNotOnPath");
+            fail("Expected NoSuchNodeTypeException");
+        } catch (Exception e) {
+            assertTrue("Expected NoSuchNodeTypeException", e.getCause() instanceof NoSuchNodeTypeException);
+        }
+        U.assertNodeExists("/removeMixinNotOnPath", "nt:unstructured", Collections.singletonList("mix:referenceable"));
+    }
+
     protected void assertNodeNotExists(String path) throws RepositoryException {
         Session adminSession = context.resourceResolver().adaptTo(Session.class);
         assertFalse("Node should not exist", adminSession.nodeExists(path));
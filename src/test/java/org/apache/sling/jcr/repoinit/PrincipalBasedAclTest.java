@@ -56,11 +56,17 @@ import org.apache.jackrabbit.oak.spi.security.authorization.principalbased.impl.
 import org.apache.jackrabbit.oak.spi.security.principal.SystemUserPrincipal;
 import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
 import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.repoinit.impl.AclUtil;
+import org.apache.sling.jcr.repoinit.impl.JcrRepoInitOpsProcessorImpl;
 import org.apache.sling.jcr.repoinit.impl.RepoInitException;
+import org.apache.sling.jcr.repoinit.impl.RepositoryInitializerFactory;
 import org.apache.sling.jcr.repoinit.impl.SessionContext;
 import org.apache.sling.jcr.repoinit.impl.TestUtil;
+import org.apache.sling.repoinit.parser.RepoInitParser;
 import org.apache.sling.repoinit.parser.RepoInitParsingException;
+import org.apache.sling.repoinit.parser.impl.RepoInitParserService;
 import org.apache.sling.repoinit.parser.operations.AclLine;
 import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
 import org.jetbrains.annotations.NotNull;
@@ -78,6 +84,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class PrincipalBasedAclTest {
 
@@ -238,6 +246,20 @@ public class PrincipalBasedAclTest {
         assertPermission(testSession, propPath, Session.ACTION_SET_PROPERTY, false);
     }
 
+    @Test
+    public void readGrantedToUserCreatedInSameScript() throws Exception {
+        final String id = U.username + "_new";
+        U.parseAndExecute("create service user " + id + " with path " + relPath + "\n" + "set principal ACL for " + id
+                + "\n" + "allow jcr:read on " + path + "\n" + "end");
+
+        final Session session = loginSystemUserPrincipal(id);
+        try {
+            assertPermission(session, path, Session.ACTION_READ, true);
+        } finally {
+            session.logout();
+        }
+    }
+
     @Test
     public void grantedNonExistingPath() throws Exception {
         String nonExistingPath = path + "/nonExisting";
@@ -1144,6 +1166,43 @@ public class PrincipalBasedAclTest {
         assertTrue(policies[0] instanceof PrincipalAccessControlList);
     }
 
+    @Test
+    public void changedForcedPathReappliesAclInIncrementalMode() throws Exception {
+        final String uid = adminSession.getUserID();
+        final SlingRepository slingRepository = mock(SlingRepository.class);
+        when(slingRepository.loginAdministrative(null))
+                .thenAnswer(invocation -> repository.login(new SimpleCredentials(uid, uid.toCharArray()), null));
+        context.registerService(RepoInitParser.class, new RepoInitParserService());
+        context.registerService(JcrRepoInitOpsProcessor.class, new JcrRepoInitOpsProcessorImpl());
+        context.registerService(MetricsService.class, mock(MetricsService.class));
+
+        // moving the user recreates it, which drops its principal-based entries
+        final String id = U.username + "_forced";
+        for (String folder : new String[] {"one", "two"}) {
+            final String script = "create service user " + id + " with forced path " + relPath + "/" + folder + "\n"
+                    + "set principal ACL for " + id + "\n" + "allow jcr:read on " + path + "\n" + "end";
+            final RepositoryInitializerFactory factory = new RepositoryInitializerFactory();
+            context.registerInjectActivateService(
+                    factory,
+                    "service.pid",
+                    "PrincipalBasedAclTest",
+                    "scripts",
+                    new String[] {script},
+                    "incremental",
+                    true);
+            factory.processRepository(slingRepository);
+        }
+
+        adminSession.refresh(false);
+        assertTrue(getServiceUser(id).getPath().contains("/two/"));
+        final Session session = loginSystemUserPrincipal(id);
+        try {
+            assertPermission(session, path, Session.ACTION_READ, true);
+        } finally {
+            session.logout();
+        }
+    }
+
     @Nullable
     private static PrincipalAccessControlList getApplicableAcl(@NotNull Principal principal, @NotNull Session session)
             throws RepositoryException {
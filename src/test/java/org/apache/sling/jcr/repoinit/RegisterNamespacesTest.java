@@ -76,6 +76,14 @@ public class RegisterNamespacesTest {
         assertEquals(NS3, ns.getURI("three"));
     }
 
+    @Test
+    public void identicalNamespacesRegisteredAgain() throws Exception {
+        U.parseAndExecute(
+                "register namespace (one) " + NS1, "register namespace (jcr) " + NamespaceRegistry.NAMESPACE_JCR);
+        assertEquals(NS1, ns.getURI("one"));
+        assertEquals(NamespaceRegistry.NAMESPACE_JCR, ns.getURI("jcr"));
+    }
+
     @Test(expected = RepoInitParsingException.class)
     public void EmptyNamespaceName() throws RepoInitParsingException, RepositoryException {
         U.parseAndExecute("register namespace (four)");
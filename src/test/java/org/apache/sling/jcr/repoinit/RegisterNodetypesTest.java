@@ -20,9 +20,11 @@ package org.apache.sling.jcr.repoinit;
 
 import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
 
 import java.util.UUID;
 
+import org.apache.sling.jcr.repoinit.impl.RepoInitException;
 import org.apache.sling.jcr.repoinit.impl.TestUtil;
 import org.apache.sling.repoinit.parser.RepoInitParsingException;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
@@ -33,6 +35,8 @@ import org.junit.Test;
 import org.junit.Test.None;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 /** Test register nodetypes statements. Also registers a namespace */
 public class RegisterNodetypesTest {
@@ -63,4 +67,46 @@ public class RegisterNodetypesTest {
     public void fooNodetypeRegistered() throws Exception {
         U.getAdminSession().getRootNode().addNode("test_" + TEST_ID, NS_PREFIX + ":foo");
     }
+
+    @Test
+    public void nodetypesReferencingEachOtherAcrossStatements() throws Exception {
+        final String[] statements = {
+            "register nodetypes",
+            "<<===",
+            "<< [" + NS_PREFIX + ":base] > nt:unstructured",
+            "===>>",
+            "register nodetypes",
+            "<<===",
+            "<< [" + NS_PREFIX + ":child] > " + NS_PREFIX + ":base, mix:created",
+            "<< [" + NS_PREFIX + ":mixin] mixin",
+            "===>>"
+        };
+        U.parseAndExecute(statements);
+        // registering the same node types again is a no-op
+        U.parseAndExecute(statements);
+
+        final NodeType child =
+                U.getAdminSession().getWorkspace().getNodeTypeManager().getNodeType(NS_PREFIX + ":child");
+        assertTrue(child.isNodeType(NS_PREFIX + ":base"));
+        assertTrue(child.isNodeType("mix:created"));
+    }
+
+    @Test
+    public void unknownSupertypeFails() throws Exception {
+        final RepoInitException e = assertThrows(
+                RepoInitException.class,
+                () -> U.parseAndExecute(
+                        "register nodetypes",
+                        "<<===",
+                        "<< [" + NS_PREFIX + ":broken] > " + NS_PREFIX + ":missing",
+                        "===>>"));
+        assertTrue(e.getMessage(), e.getMessage().contains(NS_PREFIX + ":broken"));
+    }
+
+    @Test
+    public void invalidCndFails() throws Exception {
+        assertThrows(
+                RepoInitException.class,
+                () -> U.parseAndExecute("register nodetypes", "<<===", "<< [" + NS_PREFIX + ":invalid] > ", "===>>"));
+    }
 }
@@ -25,6 +25,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.apache.jackrabbit.api.JackrabbitWorkspace;
+import org.apache.sling.jcr.repoinit.impl.RepoInitException;
 import org.apache.sling.jcr.repoinit.impl.TestUtil;
 import org.apache.sling.repoinit.parser.RepoInitParsingException;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
@@ -36,6 +37,7 @@ import org.junit.Test;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 public class RegisterPrivilegeTest {
@@ -114,4 +116,32 @@ public class RegisterPrivilegeTest {
                 new HashSet<String>(
                         asList("withoutabstract_withoutaggregates1", "withoutabstract_withoutaggregates3")));
     }
+
+    @Test
+    public void testRegisterAggregateBeforeItsPrivileges() throws Exception {
+        final String[] statements = {
+            "register privilege forward_withaggregates with forward_withoutaggregates1,forward_withoutaggregates2",
+            "register abstract privilege forward_withoutaggregates1",
+            "register privilege forward_withoutaggregates2"
+        };
+        U.parseAndExecute(statements);
+        // registering the same privileges again is a no-op
+        U.parseAndExecute(statements);
+
+        Privilege privilege = ((JackrabbitWorkspace) U.getAdminSession().getWorkspace())
+                .getPrivilegeManager()
+                .getPrivilege("forward_withaggregates");
+
+        assertFalse(privilege.isAbstract());
+        assertEquals(2, privilege.getDeclaredAggregatePrivileges().length);
+    }
+
+    @Test
+    public void testRegisterCyclicAggregatesFails() throws Exception {
+        final RepoInitException e = assertThrows(
+                RepoInitException.class,
+                () -> U.parseAndExecute(
+                        "register privilege cyclic_a with cyclic_b", "register privilege cyclic_b with cyclic_a"));
+        assertTrue(e.getMessage(), e.getMessage().contains("cyclic_b"));
+    }
 }
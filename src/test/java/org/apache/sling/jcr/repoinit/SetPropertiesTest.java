@@ -224,6 +224,21 @@ public class SetPropertiesTest {
         U.assertSVPropertyExists(path4, "sling:ResourceType", expectedValue);
     }
 
+    @Test
+    public void noChangeOnSameAuthorizableProps() throws Exception {
+        String userid = "user" + UUID.randomUUID();
+        U.parseAndExecute("create user " + userid);
+        String repoinitStr = "set properties on authorizable(" + userid + "), authorizable(" + userid
+                + ")/profile \n set one to oneA \n set many to manyA, manyB \n end";
+        assertTrue("First execution should set the properties", U.parseAndExecute(repoinitStr));
+        assertFalse(
+                "Returning changes on second execution with same values - session should NOT contain changes.",
+                U.parseAndExecute(repoinitStr));
+        U.assertAuthorizableSVPropertyExists(userid, "one", vf.createValue("oneA"));
+        U.assertAuthorizableMVPropertyExists(
+                userid, "profile/many", new Value[] {vf.createValue("manyA"), vf.createValue("manyB")});
+    }
+
     /**
      * SLING-11293 "set default properties" instruction to change autocreated property value
      */
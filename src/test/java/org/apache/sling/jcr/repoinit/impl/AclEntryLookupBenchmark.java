@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.security.AccessControlEntry;
+import javax.jcr.security.Privilege;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlEntry;
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.commons.jackrabbit.authorization.AccessControlUtils;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the linear scan of existing access control entries with the {@link AclUtil.EntryIndex}
+ * when checking a batch of new entries against an ACL with many entries.
+ * <p>
+ * Run with {@code java -cp <test classpath> org.apache.sling.jcr.repoinit.impl.AclEntryLookupBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AclEntryLookupBenchmark {
+
+    private static final String PATH = "/content";
+
+    private static final int PRINCIPALS = 10;
+
+    private static final int LOOKUPS = 100;
+
+    @Param({"100", "1000"})
+    public int existingEntries;
+
+    private Session session;
+    private JackrabbitAccessControlList existingAcl;
+    private AccessControlEntry[] existingAces;
+    private List<AclUtil.LocalAccessControlEntry> newAces;
+
+    @Setup(Level.Trial)
+    public void setup() throws RepositoryException {
+        final Repository repository = new Jcr(new Oak()).createRepository();
+        session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        session.getRootNode().addNode(PATH.substring(1));
+        final UserManager userManager = ((JackrabbitSession) session).getUserManager();
+        final List<Principal> principals = new ArrayList<>();
+        for (int i = 0; i < PRINCIPALS; i++) {
+            principals.add(userManager.createGroup("group-" + i).getPrincipal());
+        }
+
+        // like on tenant roots, each principal has a few unrestricted entries and many restricted ones
+        final JackrabbitAccessControlList acl = AccessControlUtils.getAccessControlList(session, PATH);
+        final Privilege[] read = AccessControlUtils.privilegesFromNames(session, Privilege.JCR_READ);
+        final ValueFactory vf = session.getValueFactory();
+        for (Principal principal : principals) {
+            acl.addEntry(principal, read, true);
+        }
+        for (int i = 0; i < existingEntries; i++) {
+            final Map<String, Value> restrictions =
+                    Collections.singletonMap("rep:glob", vf.createValue("/tenant-" + i + "/*"));
+            acl.addEntry(principals.get(i % PRINCIPALS), read, i % 3 != 0, restrictions);
+        }
+        session.getAccessControlManager().setPolicy(PATH, acl);
+        session.save();
+        existingAcl = AccessControlUtils.getAccessControlList(session, PATH);
+        existingAces = existingAcl.getAccessControlEntries();
+
+        // half of the new entries are already present, the other half differ in the allow/deny flag
+        final SessionContext context = new SessionContext(session);
+        newAces = new ArrayList<>(LOOKUPS);
+        for (int i = 0; i < LOOKUPS; i++) {
+            newAces.add(new AclUtil.LocalAccessControlEntry(
+                    context, principals.get(i % PRINCIPALS), new String[] {Privilege.JCR_READ}, i % 2 == 0));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        session.logout();
+    }
+
+    @Benchmark
+    public int linearScan() throws RepositoryException {
+        int found = 0;
+        for (AclUtil.LocalAccessControlEntry newAce : newAces) {
+            for (AccessControlEntry ace : existingAces) {
+                if (newAce.isContainedIn((JackrabbitAccessControlEntry) ace)) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int indexedLookup() throws RepositoryException {
+        int found = 0;
+        final AclUtil.EntryIndex index = new AclUtil.EntryIndex(existingAcl);
+        for (AclUtil.LocalAccessControlEntry newAce : newAces) {
+            if (index.contains(newAce)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                        .include(AclEntryLookupBenchmark.class.getSimpleName())
+                        .build())
+                .run();
+    }
+}
@@ -40,6 +40,7 @@ import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.spi.security.principal.EveryonePrincipal;
 import org.apache.jackrabbit.oak.spi.security.principal.PrincipalImpl;
 import org.apache.sling.repoinit.parser.RepoInitParsingException;
+import org.apache.sling.repoinit.parser.operations.RestrictionClause;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
 import org.junit.After;
@@ -52,7 +53,9 @@ import org.junit.jupiter.api.Assertions;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -85,6 +88,92 @@ public class AclUtilTest {
         U.cleanupUser();
     }
 
+    @Test
+    public void workingSetWritesEachAclOnce() throws Exception {
+        final String path = "/" + getClass().getSimpleName() + "-" + System.nanoTime();
+        U.parseAndExecute("create path " + path);
+        final SessionContext sessionContext = toPCSessionWrapper(U.adminSession);
+        sessionContext.enableAclWorkingSet();
+        final List<String> principals = Collections.singletonList(U.username);
+        final List<String> paths = Collections.singletonList(path);
+
+        AclUtil.setAcl(sessionContext, principals, paths, Collections.singletonList(Privilege.JCR_READ), true);
+        AclUtil.setAcl(sessionContext, principals, paths, Collections.singletonList(Privilege.JCR_WRITE), false);
+        // an equivalent entry which is only present in the working set is not added again
+        AclUtil.setAcl(sessionContext, principals, paths, Collections.singletonList(Privilege.JCR_READ), true);
+        assertFalse(U.adminSession.nodeExists(path + "/rep:policy"));
+        assertEquals(0, sessionContext.getAclWorkingSet().getWriteCount());
+
+        sessionContext.flushAcls();
+        assertEquals(1, sessionContext.getAclWorkingSet().getWriteCount());
+        final JackrabbitAccessControlList written = AccessControlUtils.getAccessControlList(U.adminSession, path);
+        assertEquals(2, written.size());
+        assertIsContained(written, U.username, new String[] {Privilege.JCR_READ}, true);
+        assertIsContained(written, U.username, new String[] {Privilege.JCR_WRITE}, false);
+    }
+
+    @Test
+    public void workingSetKeepsEntryIndexUpToDate() throws Exception {
+        final String path = "/" + getClass().getSimpleName() + "-" + System.nanoTime();
+        U.parseAndExecute("create path " + path);
+        final SessionContext sessionContext = toPCSessionWrapper(U.adminSession);
+        sessionContext.enableAclWorkingSet();
+        final List<String> principals = Collections.singletonList(U.username);
+        final List<String> paths = Collections.singletonList(path);
+        final List<String> read = Collections.singletonList(Privilege.JCR_READ);
+
+        AclUtil.setAcl(sessionContext, principals, paths, read, true);
+        sessionContext.flushAcls();
+
+        // denying the privilege removes the indexed allow entry, which must then be added again
+        AclUtil.setAcl(sessionContext, principals, paths, read, false);
+        final JackrabbitAccessControlList pending =
+                sessionContext.getAclWorkingSet().get(sessionContext.getAccessControlManager(), path, false);
+        assertSame(
+                sessionContext.getAclWorkingSet().getEntryIndex(path, pending),
+                sessionContext.getAclWorkingSet().getEntryIndex(path, pending));
+        AclUtil.setAcl(sessionContext, principals, paths, read, true);
+        sessionContext.flushAcls();
+
+        final JackrabbitAccessControlList written = AccessControlUtils.getAccessControlList(U.adminSession, path);
+        assertEquals(1, written.size());
+        assertIsContained(written, U.username, new String[] {Privilege.JCR_READ}, true);
+
+        // removed entries are not found in the index anymore
+        AclUtil.setAcl(sessionContext, principals, paths, read, true);
+        AclUtil.removeEntries(sessionContext, principals, paths);
+        AclUtil.setAcl(sessionContext, principals, paths, read, true);
+        sessionContext.flushAcls();
+        assertEquals(
+                1, AccessControlUtils.getAccessControlList(U.adminSession, path).size());
+    }
+
+    @Test
+    public void restrictionsAreConvertedOncePerRun() throws Exception {
+        final SessionContext sessionContext = toPCSessionWrapper(U.adminSession);
+        final AclUtil.LocalRestrictions glob = AclUtil.createLocalRestrictions(
+                Collections.singletonList(new RestrictionClause("rep:glob", Collections.singletonList("/a/*"))),
+                acl,
+                sessionContext);
+        final AclUtil.LocalRestrictions sameGlob = AclUtil.createLocalRestrictions(
+                Collections.singletonList(new RestrictionClause("rep:glob", Collections.singletonList("/a/*"))),
+                acl,
+                sessionContext);
+        final AclUtil.LocalRestrictions otherGlob = AclUtil.createLocalRestrictions(
+                Collections.singletonList(new RestrictionClause("rep:glob", Collections.singletonList("/b/*"))),
+                acl,
+                sessionContext);
+
+        assertSame(glob, sameGlob);
+        assertNotSame(glob, otherGlob);
+        assertEquals("[rep:glob]", glob.signature());
+        final Value[] existing = new Value[] {U.adminSession.getValueFactory().createValue("/a/*")};
+        assertTrue(glob.sameValues("rep:glob", existing));
+        assertFalse(otherGlob.sameValues("rep:glob", existing));
+        assertThrows(UnsupportedOperationException.class, () -> glob.getRestrictions()
+                .clear());
+    }
+
     @Test
     public void entryIsContained() throws Exception {
 
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the resolution of the authorizables referenced by a script with
+ * {@link SessionContext#resolveAuthorizables(java.util.Collection)} and with individual lookups, for
+ * authorizables which exist, like in repeated runs, and which do not exist yet, like in the first run.
+ * <p>
+ * Run with {@code java -cp <test classpath> org.apache.sling.jcr.repoinit.impl.AuthorizableResolutionBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorizableResolutionBenchmark {
+
+    private static final int EXISTING = 1000;
+
+    @Param({"100", "1000"})
+    public int referenced;
+
+    @Param({"true", "false"})
+    public boolean exist;
+
+    private Session session;
+    private List<String> ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws RepositoryException {
+        final Repository repository = new Jcr(new Oak()).createRepository();
+        session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        final UserManager userManager = ((JackrabbitSession) session).getUserManager();
+        for (int i = 0; i < EXISTING; i++) {
+            userManager.createSystemUser("bench-user-" + i, null);
+        }
+        session.save();
+        ids = new ArrayList<>(referenced);
+        for (int i = 0; i < referenced; i++) {
+            ids.add((exist ? "bench-user-" : "missing-user-") + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        session.logout();
+    }
+
+    @Benchmark
+    public int bulkResolution() throws RepositoryException {
+        final SessionContext context = new SessionContext(session);
+        context.resolveAuthorizables(ids);
+        return lookup(context);
+    }
+
+    @Benchmark
+    public int individualLookups() throws RepositoryException {
+        return lookup(new SessionContext(session));
+    }
+
+    private int lookup(SessionContext context) throws RepositoryException {
+        int found = 0;
+        for (String id : ids) {
+            if (context.getAuthorizable(id) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                        .include(AuthorizableResolutionBenchmark.class.getSimpleName())
+                        .build())
+                .run();
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlManager;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.jcr.repoinit.JcrRepoInitOpsProcessor;
+import org.apache.sling.repoinit.parser.RepoInitParser;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+public class OperationDispatcherTest {
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_OAK);
+
+    private TestUtil U;
+    private String path;
+
+    @Before
+    public void setup() {
+        U = new TestUtil(context);
+        path = "/" + getClass().getSimpleName() + "-" + UUID.randomUUID();
+    }
+
+    @Test
+    public void visitorsOnlyCreatedForPresentOperationTypes() throws Exception {
+        final List<Operation> ops = TestUtil.parse("create path " + path + "/a", "create path " + path + "/b");
+        final OperationDispatcher dispatcher = new OperationDispatcher(U.adminSession, ops);
+        assertNull(dispatcher.getLastAttemptedOperation());
+        assertEquals(0, dispatcher.getVisitorCount());
+
+        dispatcher.dispatch();
+        assertEquals(1, dispatcher.getVisitorCount());
+        assertEquals(ops.get(1), dispatcher.getLastAttemptedOperation());
+        U.assertNodeExists(path + "/a");
+        U.assertNodeExists(path + "/b");
+    }
+
+    @Test
+    public void phasesAppliedInOrder() throws Exception {
+        final String prefix = getClass().getSimpleName();
+        final List<Operation> ops = TestUtil.parse(
+                "create path (" + prefix + ":foo) " + path,
+                "set properties on " + path,
+                "  set title to \"dispatched\"",
+                "end",
+                "register nodetypes",
+                "<<===",
+                "[" + prefix + ":foo] > nt:unstructured",
+                "===>>",
+                "register namespace (" + prefix + ") uri:" + prefix + ":" + UUID.randomUUID());
+        final OperationDispatcher dispatcher = new OperationDispatcher(U.adminSession, ops);
+        dispatcher.dispatch();
+
+        // namespace, nodetype, path and properties handled by their respective visitors
+        assertEquals(4, dispatcher.getVisitorCount());
+        // the last statement of the last phase is the set properties
+        assertEquals(ops.get(1), dispatcher.getLastAttemptedOperation());
+        U.assertNodeExists(path, prefix + ":foo");
+    }
+
+    @Test
+    public void pathCreationIsSavedInBatches() throws Exception {
+        final List<Operation> ops = TestUtil.parse(
+                "create path " + path + "/a", "create path " + path + "/b", "create path " + path + "/c");
+        final SessionContext sessionContext = new SessionContext(U.adminSession);
+        sessionContext.setSaveBatchSize(2, 100);
+        new OperationDispatcher(sessionContext, ops).dispatch();
+
+        // one save after the first two operations, and a final one
+        assertEquals(2, sessionContext.getSaveCount());
+        assertFalse(U.adminSession.hasPendingChanges());
+        U.assertNodeExists(path + "/c");
+    }
+
+    @Test
+    public void consecutivePathsAreCreatedAsOneTree() throws Exception {
+        final List<Operation> ops = TestUtil.parse(
+                "create path " + path + "/a/x",
+                "create path " + path + "/b",
+                "ensure nodes " + path + "/a(nt:unstructured)/y",
+                "create path " + path + "/a/z with properties",
+                "  set title to \"merged\"",
+                "end",
+                "create path " + path + "/a/w");
+        final OperationDispatcher dispatcher = new OperationDispatcher(U.adminSession, ops);
+        dispatcher.dispatch();
+
+        // the create path statements before and after the ensure nodes statement are merged, the result is
+        // the same as applying them one by one
+        assertEquals(ops.get(4), dispatcher.getLastAttemptedOperation());
+        U.assertNodeExists(path + "/a", "nt:unstructured");
+        U.assertNodeExists(path + "/b");
+        assertEquals("merged", U.adminSession.getProperty(path + "/a/z/title").getString());
+        final List<String> children = new ArrayList<>();
+        for (NodeIterator it = U.adminSession.getNode(path + "/a").getNodes(); it.hasNext(); ) {
+            children.add(it.nextNode().getName());
+        }
+        assertEquals(Arrays.asList("x", "y", "z", "w"), children);
+    }
+
+    @Test
+    public void secondRunDoesNotChangeNodes() throws Exception {
+        final String[] script = {
+            "create path " + path + "/a(nt:unstructured mixin mix:lockable)",
+            "ensure nodes " + path + "/b(nt:unstructured mixin mix:referenceable)",
+            "add mixin mix:lastModified to " + path + "/a"
+        };
+        final SessionContext first = new SessionContext(U.adminSession);
+        new OperationDispatcher(first, TestUtil.parse(script)).dispatch();
+        assertEquals(4, first.getChangedNodes());
+        U.assertNodeExists(path + "/a", "nt:unstructured", Arrays.asList("mix:lockable", "mix:lastModified"));
+        U.assertNodeExists(path + "/b", "nt:unstructured", Collections.singletonList("mix:referenceable"));
+
+        final SessionContext second = new SessionContext(U.adminSession);
+        new OperationDispatcher(second, TestUtil.parse(script)).dispatch();
+        assertEquals(0, second.getChangedNodes());
+        assertEquals(0, second.getSaveCount());
+    }
+
+    @Test
+    public void checkpointsFollowSavedOperations() throws Exception {
+        final List<Operation> ops = TestUtil.parse(
+                "create path " + path + "/a",
+                "register namespace (" + getClass().getSimpleName() + ") uri:test:" + UUID.randomUUID(),
+                "create path " + path + "/b",
+                "create path " + path + "/c");
+        final SessionContext sessionContext = new SessionContext(U.adminSession);
+        sessionContext.setSaveBatchSize(2, 100);
+        final List<Integer> checkpoints = new ArrayList<>();
+        final OperationDispatcher dispatcher = new OperationDispatcher(sessionContext, ops);
+        dispatcher.setCheckpointListener(checkpoints::add);
+        dispatcher.dispatch();
+
+        // the first batch ends with the second path, the final save covers all operations
+        assertEquals(Arrays.asList(3, 4), checkpoints);
+    }
+
+    @Test
+    public void checkpointIsKeptWhenTheLastPhaseFails() throws Exception {
+        final String prefix =
+                "cpt" + UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+        final List<Operation> ops = TestUtil.parse(
+                "register namespace (" + prefix + ") uri:test:" + prefix,
+                "create path " + path + "/a",
+                "create path " + path + "/b",
+                "create path " + path + "/c",
+                "create path " + path + "/d");
+        // the second save fails
+        final AtomicInteger saves = new AtomicInteger();
+        final SessionContext sessionContext = new SessionContext(U.adminSession) {
+            @Override
+            void save() throws RepositoryException {
+                if (saves.incrementAndGet() == 2) {
+                    throw new InvalidItemStateException("conflict");
+                }
+                super.save();
+            }
+        };
+        sessionContext.setSaveBatchSize(2, 100);
+        final List<Integer> checkpoints = new ArrayList<>();
+        final OperationDispatcher dispatcher = new OperationDispatcher(sessionContext, ops);
+        dispatcher.setCheckpointListener(checkpoints::add);
+        assertThrows(RepoInitException.class, dispatcher::dispatch);
+
+        // the namespace is registered by the first phase, the first batch of paths is saved in the last one
+        assertEquals(Arrays.asList(1, 3), checkpoints);
+        U.adminSession.refresh(false);
+        U.assertNodeExists(path + "/b");
+        assertFalse(U.adminSession.nodeExists(path + "/c"));
+    }
+
+    @Test
+    public void batchIsSavedBeforeSettingAcl() throws Exception {
+        U.parseAndExecute("create service user " + U.username);
+        final List<Operation> ops = TestUtil.parse(
+                "create path " + path + "/a", "set ACL for " + U.username, "  allow jcr:read on " + path + "/a", "end");
+        final SessionContext sessionContext = new SessionContext(U.adminSession);
+        new OperationDispatcher(sessionContext, ops).dispatch();
+
+        // the batch is saved before the ACL is set, the ACL itself is left to the caller
+        assertEquals(1, sessionContext.getSaveCount());
+        assertTrue(U.adminSession.hasPendingChanges());
+        U.adminSession.save();
+        U.assertNodeExists(path + "/a/rep:policy");
+    }
+
+    @Test
+    public void aclIsAppliedAgainWhenRetryingAfterConflict() throws Exception {
+        U.parseAndExecute("create service user " + U.username);
+        // the second and third saves fail: the first attempt, and its fallback to the legacy order
+        final AtomicInteger saves = new AtomicInteger();
+        final JcrRepoInitOpsProcessorImpl conflicting = new JcrRepoInitOpsProcessorImpl() {
+            @Override
+            SessionContext createContext(Session session) {
+                final SessionContext sessionContext = new SessionContext(session) {
+                    @Override
+                    void save() throws RepositoryException {
+                        if (hasUnflushedChanges() || session.hasPendingChanges()) {
+                            final int save = saves.incrementAndGet();
+                            if (save == 2 || save == 3) {
+                                throw new InvalidItemStateException("conflict");
+                            }
+                        }
+                        super.save();
+                    }
+                };
+                sessionContext.setSaveBatchSize(2, 1000);
+                sessionContext.enableAclWorkingSet();
+                sessionContext.enableMembershipWorkingSet();
+                return sessionContext;
+            }
+        };
+        context.registerService(RepoInitParser.class, mock(RepoInitParser.class));
+        context.registerService(MetricsService.class, mock(MetricsService.class));
+        context.registerService(JcrRepoInitOpsProcessor.class, conflicting);
+        final RepositoryInitializerFactory factory = new RepositoryInitializerFactory();
+        context.registerInjectActivateService(factory);
+
+        // the batch with /a is saved before the ACL is set, the ACL itself is only written by the failing save
+        final List<Operation> ops = TestUtil.parse(
+                "create path " + path + "/a",
+                "set ACL for " + U.username,
+                "  allow jcr:read on " + path + "/a",
+                "end",
+                "create path " + path + "/b");
+        final RetryableOperation retry = new RetryableOperation.Builder()
+                .withBackoffBaseMsec(1)
+                .withMaxRetries(3)
+                .build();
+        assertTrue(factory.applyOperationInternal(U.adminSession, ops, "", null, retry)
+                .isSuccessful());
+        assertEquals(1, retry.retryCount);
+        U.assertNodeExists(path + "/a/rep:policy");
+        U.assertNodeExists(path + "/b");
+    }
+
+    @Test
+    public void failedNodeTypeRegistrationIsReportedForItsStatement() throws Exception {
+        final String prefix =
+                "odt" + UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+        final List<Operation> ops = TestUtil.parse(
+                "register namespace (" + prefix + ") uri:test:" + prefix,
+                "register nodetypes",
+                "<<===",
+                "<< [" + prefix + ":valid] > nt:unstructured",
+                "===>>",
+                "register nodetypes",
+                "<<===",
+                "<< [" + prefix + ":broken] > " + prefix + ":missing",
+                "===>>",
+                "create path " + path + "/a");
+        final SessionContext sessionContext = new SessionContext(U.adminSession);
+        sessionContext.enableNodeTypeWorkingSet();
+        final OperationDispatcher dispatcher = new OperationDispatcher(sessionContext, ops);
+        final RepoInitException e = assertThrows(RepoInitException.class, dispatcher::dispatch);
+        assertTrue(e.getMessage(), e.getMessage().contains(prefix + ":broken"));
+        assertSame(ops.get(2), dispatcher.getLastAttemptedOperation());
+    }
+
+    @Test
+    public void failedPrivilegeRegistrationIsReportedForItsStatement() throws Exception {
+        final String name = "odt-" + UUID.randomUUID();
+        final List<Operation> ops = TestUtil.parse(
+                "register privilege " + name + "-a with " + name + "-b",
+                "register privilege " + name + "-b with " + name + "-a",
+                "create path " + path + "/a");
+        final SessionContext sessionContext = new SessionContext(U.adminSession);
+        sessionContext.enablePrivilegeWorkingSet();
+        final OperationDispatcher dispatcher = new OperationDispatcher(sessionContext, ops);
+        final RepoInitException e = assertThrows(RepoInitException.class, dispatcher::dispatch);
+        assertTrue(e.getMessage(), e.getMessage().contains(name + "-b"));
+        assertSame(ops.get(1), dispatcher.getLastAttemptedOperation());
+    }
+
+    @Test
+    public void failedAclWriteIsReportedForItsFirstStatement() throws Exception {
+        U.parseAndExecute(
+                "create service user " + U.username, "create path " + path + "/a", "create path " + path + "/b");
+        final List<Operation> ops = TestUtil.parse(
+                "set ACL on " + path + "/a",
+                "  allow jcr:read for " + U.username,
+                "end",
+                "set ACL on " + path + "/b",
+                "  allow jcr:read for " + U.username,
+                "end",
+                "set ACL on " + path + "/b",
+                "  allow jcr:write for " + U.username,
+                "end");
+        final SessionContext sessionContext = new SessionContext(U.adminSession) {
+            private JackrabbitAccessControlManager failing;
+
+            @Override
+            public JackrabbitAccessControlManager getAccessControlManager() {
+                if (failing == null) {
+                    failing = spy(super.getAccessControlManager());
+                    try {
+                        doThrow(new AccessControlException("denied"))
+                                .when(failing)
+                                .setPolicy(eq(path + "/b"), any());
+                    } catch (RepositoryException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return failing;
+            }
+        };
+        sessionContext.enableAclWorkingSet();
+        final OperationDispatcher dispatcher = new OperationDispatcher(sessionContext, ops);
+        final RepoInitException e = assertThrows(RepoInitException.class, dispatcher::dispatch);
+        assertTrue(e.getMessage(), e.getMessage().contains(path + "/b"));
+        assertTrue(e.getMessage(), e.getMessage().contains("denied"));
+        assertSame(ops.get(1), dispatcher.getLastAttemptedOperation());
+    }
+
+    @Test
+    public void failedMergedPathCreationIsReportedForItsStatement() throws Exception {
+        final List<Operation> ops = TestUtil.parse(
+                "create path " + path + "/a",
+                "create path " + path + "/b(nt:notANodeType)",
+                "create path " + path + "/c");
+        final OperationDispatcher dispatcher = new OperationDispatcher(U.adminSession, ops);
+        final RepoInitException e = assertThrows(RepoInitException.class, dispatcher::dispatch);
+        assertTrue(e.getMessage(), e.getMessage().contains("nt:notANodeType"));
+        assertSame(ops.get(1), dispatcher.getLastAttemptedOperation());
+    }
+
+    @Test
+    public void failedMembershipUpdateIsReportedForItsStatement() throws Exception {
+        final String group = U.username + "-group";
+        final String broken = U.username + "-broken";
+        U.parseAndExecute("create service user " + U.username, "create group " + group);
+        final List<Operation> ops =
+                TestUtil.parse("add " + broken + " to group " + group, "add " + U.username + " to group " + group);
+        // the membership changes are applied after both statements, the lookup of the first member fails
+        final SessionContext sessionContext = new SessionContext(U.adminSession) {
+            @Override
+            Authorizable getAuthorizable(String id) throws RepositoryException {
+                if (id.equals(broken)) {
+                    throw new RepositoryException("lookup failed");
+                }
+                return super.getAuthorizable(id);
+            }
+        };
+        sessionContext.enableMembershipWorkingSet();
+        final OperationDispatcher dispatcher = new OperationDispatcher(sessionContext, ops);
+        final RepoInitException e = assertThrows(RepoInitException.class, dispatcher::dispatch);
+        assertTrue(e.getMessage(), e.getMessage().contains(group));
+        assertTrue(e.getMessage(), e.getMessage().contains("lookup failed"));
+        assertSame(ops.get(0), dispatcher.getLastAttemptedOperation());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OperationJournalTest {
+
+    private static final String PATH_A = "create path /journal/a";
+    private static final String PATH_B = "create path /journal/b";
+    private static final String PATH_C = "create path /journal/c";
+
+    private static List<Operation> delta(List<String> journal, String... lines) throws Exception {
+        final List<Operation> ops = TestUtil.parse(lines);
+        return OperationJournal.delta(ops, OperationJournal.fingerprints(ops), journal);
+    }
+
+    private static List<String> journal(String... lines) throws Exception {
+        return OperationJournal.fingerprints(TestUtil.parse(lines));
+    }
+
+    @Test
+    public void noJournalRequiresFullApply() throws Exception {
+        assertNull(delta(null, PATH_A));
+    }
+
+    @Test
+    public void unchangedScriptHasEmptyDelta() throws Exception {
+        assertTrue(delta(journal(PATH_A, PATH_B), PATH_A, PATH_B).isEmpty());
+    }
+
+    @Test
+    public void onlyNewStatementsAreApplied() throws Exception {
+        final List<Operation> delta = delta(journal(PATH_A, PATH_B), PATH_A, PATH_B, PATH_C);
+        assertEquals(1, delta.size());
+        assertEquals(PATH_C, delta.get(0).asRepoInitString().trim());
+    }
+
+    @Test
+    public void newStatementsBeforeKnownOnesRequireFullApply() throws Exception {
+        assertNull(delta(journal(PATH_A, PATH_C), PATH_A, PATH_B, PATH_C));
+        // a changed statement is new as well
+        final String setA = String.join("\n", "set properties on /journal/a", "  set title to \"a\"", "end");
+        final String setB = String.join("\n", "set properties on /journal/a", "  set title to \"b\"", "end");
+        final String setC = String.join("\n", "set properties on /journal/a", "  set title to \"c\"", "end");
+        assertNull(delta(journal(setA, setC), setB, setC));
+    }
+
+    @Test
+    public void removedStatementsAreIgnored() throws Exception {
+        assertTrue(delta(journal(PATH_A, PATH_B, PATH_C), PATH_A, PATH_C).isEmpty());
+    }
+
+    @Test
+    public void reorderedStatementsRequireFullApply() throws Exception {
+        assertNull(delta(journal(PATH_A, PATH_B), PATH_B, PATH_A));
+    }
+
+    @Test
+    public void deleteOperationsRequireFullApply() throws Exception {
+        final String delete = "delete service user journal-user";
+        assertNull(delta(journal(PATH_A, delete), PATH_A, delete));
+        final String removeAll = String.join("\n", "set ACL for journal-user", "  remove * on /journal", "end");
+        assertNull(delta(journal(PATH_A), PATH_A, removeAll));
+    }
+
+    @Test
+    public void forcedPathsRequireFullApply() throws Exception {
+        final String forced = "create service user journal-user with forced path system/journal";
+        assertNull(delta(journal(PATH_A, forced), PATH_A, forced));
+        assertNull(delta(journal(PATH_A), PATH_A, "create group journal-group with forced path journal"));
+        // without a forced path, an existing authorizable is kept as is
+        assertEquals(
+                1,
+                delta(journal(PATH_A), PATH_A, "create service user journal-user with path system/journal")
+                        .size());
+    }
+
+    @Test
+    public void fingerprintsAreStable() throws Exception {
+        assertEquals(
+                journal(PATH_A, PATH_B),
+                Arrays.asList(journal(PATH_A).get(0), journal(PATH_B).get(0)));
+    }
+}
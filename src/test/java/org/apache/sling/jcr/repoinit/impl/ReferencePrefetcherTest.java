@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ReferencePrefetcherTest {
+
+    @Test(timeout = 10000)
+    public void referencesAreLoadedConcurrentlyAndReturnedInOrder() throws Exception {
+        final List<String> references = Arrays.asList("first", "second", "third");
+        final CountDownLatch laterLoaded = new CountDownLatch(2);
+        try (ReferencePrefetcher<String> prefetcher = new ReferencePrefetcher<>(references, reference -> {
+            if (reference.equals("first")) {
+                // only completes if the other references are loaded at the same time
+                assertTrue(laterLoaded.await(5, TimeUnit.SECONDS));
+            } else {
+                laterLoaded.countDown();
+            }
+            return reference.toUpperCase();
+        })) {
+            assertEquals("FIRST", prefetcher.get(0));
+            assertEquals("SECOND", prefetcher.get(1));
+            assertEquals("THIRD", prefetcher.get(2));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failuresAreReportedForTheirReference() throws Exception {
+        final List<String> references = Arrays.asList("ok", "missing", "other");
+        try (ReferencePrefetcher<String> prefetcher = new ReferencePrefetcher<>(references, reference -> {
+            if (reference.equals("missing")) {
+                throw new FileNotFoundException(reference);
+            }
+            return reference;
+        })) {
+            assertEquals("ok", prefetcher.get(0));
+            final FileNotFoundException e = assertThrows(FileNotFoundException.class, () -> prefetcher.get(1));
+            assertEquals("missing", e.getMessage());
+            assertEquals("other", prefetcher.get(2));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void lookaheadIsBounded() throws Exception {
+        final List<String> references = new ArrayList<>();
+        for (int i = 0; i < 3 * ReferencePrefetcher.MAX_THREADS; i++) {
+            references.add("ref" + i);
+        }
+        final AtomicInteger loaded = new AtomicInteger();
+        try (ReferencePrefetcher<String> prefetcher = new ReferencePrefetcher<>(references, reference -> {
+            loaded.incrementAndGet();
+            return reference;
+        })) {
+            awaitLoaded(loaded, ReferencePrefetcher.MAX_THREADS);
+            // no further references are loaded as long as none is retrieved
+            Thread.sleep(100);
+            assertEquals(ReferencePrefetcher.MAX_THREADS, loaded.get());
+
+            assertEquals("ref0", prefetcher.get(0));
+            awaitLoaded(loaded, ReferencePrefetcher.MAX_THREADS + 1);
+            Thread.sleep(100);
+            assertEquals(ReferencePrefetcher.MAX_THREADS + 1, loaded.get());
+
+            // results are released once retrieved
+            assertThrows(IllegalStateException.class, () -> prefetcher.get(0));
+            for (int i = 1; i < references.size(); i++) {
+                assertEquals("ref" + i, prefetcher.get(i));
+            }
+            assertEquals(references.size(), loaded.get());
+        }
+    }
+
+    private static void awaitLoaded(AtomicInteger loaded, int expected) throws InterruptedException {
+        while (loaded.get() < expected) {
+            Thread.sleep(10);
+        }
+    }
+}
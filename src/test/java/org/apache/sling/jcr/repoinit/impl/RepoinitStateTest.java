@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.repoinit.JcrRepoInitOpsProcessor;
+import org.apache.sling.repoinit.parser.RepoInitParser;
+import org.apache.sling.repoinit.parser.impl.RepoInitParserService;
+import org.apache.sling.testing.mock.osgi.MockBundle;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+public class RepoinitStateTest {
+
+    private static final String PID = "RepoinitStateTest";
+
+    private static final String VERSION = "1.0.0";
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_OAK);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private TestUtil U;
+    private String path;
+
+    @Before
+    public void setup() {
+        U = new TestUtil(context);
+        path = "/" + getClass().getSimpleName() + "-" + UUID.randomUUID();
+        context.registerService(RepoInitParser.class, new RepoInitParserService());
+        context.registerService(JcrRepoInitOpsProcessor.class, new JcrRepoInitOpsProcessorImpl());
+        context.registerService(MetricsService.class, mock(MetricsService.class));
+        setBundleVersion(VERSION);
+    }
+
+    @After
+    public void cleanup() {
+        System.clearProperty(RepositoryInitializerFactory.PROP_FORCE_FULL_RUN);
+    }
+
+    @Test
+    public void storeAndReadDigest() throws Exception {
+        final RepoinitState state = new RepoinitState(U.adminSession, PID, VERSION);
+        final String key = "pid:" + path;
+        assertNull(state.getDigest(key));
+
+        final String digest = RepoinitState.digest("create path " + path);
+        state.markApplied(key, digest, null);
+        assertEquals(digest, new RepoinitState(U.adminSession, PID, VERSION).getDigest(key));
+        assertNotNull(RepoinitState.STATE_PATH + " should exist", U.adminSession.getNode(RepoinitState.STATE_PATH));
+        // the ancestors of the state nodes are folders
+        U.assertNodeExists(RepoinitState.STATE_PATH, "sling:Folder");
+        U.assertNodeExists("/var/repoinit", "sling:Folder");
+    }
+
+    @Test
+    public void unchangedScriptsAreSkipped() throws Exception {
+        final RepositoryInitializerFactory factory = activateFactory("create path " + path + "/a");
+        final SlingRepository repository = context.getService(SlingRepository.class);
+
+        factory.processRepository(repository);
+        assertEquals(0, factory.skippedScriptsAsMetric());
+        U.assertNodeExists(path + "/a");
+
+        // a second run with the same script does not apply it again
+        factory.processRepository(repository);
+        assertEquals(1, factory.skippedScriptsAsMetric());
+
+        // unless a full run is forced
+        System.setProperty(RepositoryInitializerFactory.PROP_FORCE_FULL_RUN, "true");
+        factory.processRepository(repository);
+        assertEquals(1, factory.skippedScriptsAsMetric());
+    }
+
+    @Test
+    public void unchangedReferencesAreSkipped() throws Exception {
+        final File reference = folder.newFile("repoinit.txt");
+        Files.write(reference.toPath(), ("create path " + path + "/ref").getBytes(StandardCharsets.UTF_8));
+        final AtomicInteger parsed = new AtomicInteger();
+        final RepoInitParser parser = new RepoInitParserService();
+        context.registerService(
+                RepoInitParser.class,
+                reader -> {
+                    parsed.incrementAndGet();
+                    return parser.parse(reader);
+                },
+                Constants.SERVICE_RANKING,
+                100);
+        final RepositoryInitializerFactory factory = new RepositoryInitializerFactory();
+        context.registerInjectActivateService(
+                factory,
+                "service.pid",
+                PID,
+                "references",
+                new String[] {reference.toURI().toString()},
+                "skipUnchanged",
+                true);
+        final SlingRepository repository = context.getService(SlingRepository.class);
+
+        factory.processRepository(repository);
+        U.assertNodeExists(path + "/ref");
+
+        // an unchanged reference is only read for its digest, and neither parsed nor applied again
+        U.adminSession.getNode(path + "/ref").remove();
+        U.adminSession.save();
+        factory.processRepository(repository);
+        assertEquals(1, factory.skippedScriptsAsMetric());
+        assertEquals(1, parsed.get());
+        U.adminSession.refresh(false);
+        assertFalse(U.adminSession.nodeExists(path + "/ref"));
+    }
+
+    @Test
+    public void recordedDigestIsOfAppliedReference() throws Exception {
+        final File reference = folder.newFile("repoinit.txt");
+        final String text = "create path " + path + "/first";
+        Files.write(reference.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        final RepositoryInitializerFactory factory = new RepositoryInitializerFactory();
+        context.registerInjectActivateService(
+                factory,
+                "service.pid",
+                PID,
+                "references",
+                new String[] {reference.toURI().toString()},
+                "skipUnchanged",
+                true);
+        factory.processRepository(context.getService(SlingRepository.class));
+
+        U.assertNodeExists(path + "/first");
+        assertEquals(
+                RepoinitState.digest(text),
+                new RepoinitState(U.adminSession, PID, VERSION).getDigest(PID + ":" + reference.toURI()));
+    }
+
+    @Test
+    public void digestOfStreamedTextIsSameAsOfString() throws IOException {
+        // includes a character outside of the BMP, whose surrogate pair is split by the single character reads
+        final String text = "create path /caf\u00e9/\ud834\udd1e\n";
+        final RepoinitState.DigestingReader reader = new RepoinitState.DigestingReader(new StringReader(text));
+        final char[] buffer = new char[1];
+        for (int i = 0; i < 19; i++) {
+            assertEquals(1, reader.read(buffer, 0, 1));
+        }
+        // the rest is read when closing
+        reader.close();
+        assertEquals(RepoinitState.digest(text), reader.getDigest());
+    }
+
+    @Test
+    public void changedScriptsAreApplied() throws Exception {
+        final SlingRepository repository = context.getService(SlingRepository.class);
+        activateFactory("create path " + path + "/a").processRepository(repository);
+
+        final RepositoryInitializerFactory changed = activateFactory("create path " + path + "/b");
+        changed.processRepository(repository);
+        assertEquals(0, changed.skippedScriptsAsMetric());
+        U.adminSession.refresh(false);
+        U.assertNodeExists(path + "/b");
+    }
+
+    @Test
+    public void incrementalApplyOnlyAppliesNewStatements() throws Exception {
+        final SlingRepository repository = context.getService(SlingRepository.class);
+        activateFactory("incremental", "create path " + path + "/a").processRepository(repository);
+        assertNotNull(new RepoinitState(U.adminSession, PID, VERSION).getJournal(PID + ":script[0]"));
+
+        // /a is removed outside of repoinit: an incremental run does not recreate it
+        U.adminSession.getNode(path + "/a").remove();
+        U.adminSession.save();
+        activateFactory("incremental", "create path " + path + "/a\ncreate path " + path + "/b")
+                .processRepository(repository);
+        U.adminSession.refresh(false);
+        assertFalse(U.adminSession.nodeExists(path + "/a"));
+        U.assertNodeExists(path + "/b");
+
+        // a full run does
+        System.setProperty(RepositoryInitializerFactory.PROP_FORCE_FULL_RUN, "true");
+        activateFactory("incremental", "create path " + path + "/a\ncreate path " + path + "/b")
+                .processRepository(repository);
+        U.adminSession.refresh(false);
+        U.assertNodeExists(path + "/a");
+    }
+
+    @Test
+    public void updatedBundleAppliesUnchangedScripts() throws Exception {
+        final SlingRepository repository = context.getService(SlingRepository.class);
+        activateFactory("create path " + path + "/a").processRepository(repository);
+
+        setBundleVersion("1.0.1");
+        final RepositoryInitializerFactory updated = activateFactory("create path " + path + "/a");
+        updated.processRepository(repository);
+        assertEquals(0, updated.skippedScriptsAsMetric());
+        assertNull(new RepoinitState(U.adminSession, PID, VERSION).getDigest(PID + ":script[0]"));
+    }
+
+    @Test
+    public void obsoleteStateIsPruned() throws Exception {
+        final SlingRepository repository = context.getService(SlingRepository.class);
+        final RepoinitState other = new RepoinitState(U.adminSession, "other", VERSION);
+        other.markApplied("other:script[0]", RepoinitState.digest("create path " + path), null);
+        activateFactory("skipUnchanged", "create path " + path + "/a", "create path " + path + "/b")
+                .processRepository(repository);
+        U.adminSession.refresh(false);
+        assertNotNull(new RepoinitState(U.adminSession, PID, VERSION).getDigest(PID + ":script[1]"));
+
+        // the second script is removed
+        activateFactory("create path " + path + "/a").processRepository(repository);
+        U.adminSession.refresh(false);
+        assertNull(new RepoinitState(U.adminSession, PID, VERSION).getDigest(PID + ":script[1]"));
+        assertNotNull(new RepoinitState(U.adminSession, PID, VERSION).getDigest(PID + ":script[0]"));
+
+        // as is the state of an earlier bundle version, but not the one of other configurations
+        setBundleVersion("1.0.1");
+        activateFactory("create path " + path + "/a").processRepository(repository);
+        U.adminSession.refresh(false);
+        assertNull(new RepoinitState(U.adminSession, PID, VERSION).getDigest(PID + ":script[0]"));
+        assertNotNull(new RepoinitState(U.adminSession, PID, "1.0.1").getDigest(PID + ":script[0]"));
+        assertNotNull(other.getDigest("other:script[0]"));
+    }
+
+    private void setBundleVersion(String version) {
+        ((MockBundle) context.bundleContext().getBundle()).setVersion(new Version(version));
+    }
+
+    private RepositoryInitializerFactory activateFactory(String script) {
+        return activateFactory("skipUnchanged", script);
+    }
+
+    private RepositoryInitializerFactory activateFactory(String mode, String... scripts) {
+        final RepositoryInitializerFactory factory = new RepositoryInitializerFactory();
+        context.registerInjectActivateService(factory, "service.pid", PID, "scripts", scripts, mode, true);
+        return factory;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class RepoinitTextCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDirectory;
+    private HttpServer server;
+    private URL url;
+
+    // the text and ETag served, a null text is answered with a server error
+    private volatile String text;
+    private volatile String etag;
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException {
+        cacheDirectory = new File(folder.getRoot(), "cache");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/repoinit.txt", exchange -> {
+            final String currentText = text;
+            final String currentEtag = etag;
+            if (currentText == null) {
+                exchange.sendResponseHeaders(500, -1);
+            } else if (currentEtag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", currentEtag);
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                final byte[] body = currentText.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("ETag", currentEtag);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/repoinit.txt");
+    }
+
+    @After
+    public void cleanup() {
+        server.stop(0);
+    }
+
+    private void serve(String text, String etag) {
+        this.text = text;
+        this.etag = etag;
+    }
+
+    private static String read(RepoinitTextCache cache, URL url) throws IOException {
+        try (Reader reader = cache.open(url)) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    private static void assertCounts(RepoinitTextCache cache, long hits, long misses, long fallbacks) {
+        assertEquals("hits", hits, cache.getHits());
+        assertEquals("misses", misses, cache.getMisses());
+        assertEquals("fallbacks", fallbacks, cache.getFallbacks());
+    }
+
+    @Test
+    public void onlyHttpSourcesAreCached() throws IOException {
+        assertTrue(RepoinitTextCache.isCacheable(url));
+        assertTrue(RepoinitTextCache.isCacheable(new URL("https://example.com/repoinit.txt")));
+        // local sources are read directly, as revalidating them would cost as much
+        assertFalse(RepoinitTextCache.isCacheable(
+                folder.newFile("repoinit.txt").toURI().toURL()));
+        assertFalse(RepoinitTextCache.isCacheable(new URL("jar:file:/bundle.jar!/repoinit.txt")));
+    }
+
+    @Test
+    public void httpSourceIsRevalidatedWithETag() throws IOException {
+        serve("create path /http", "\"v1\"");
+        final RepoinitTextCache cache = new RepoinitTextCache(cacheDirectory);
+        assertEquals("create path /http", read(cache, url));
+        assertEquals("create path /http", read(cache, url));
+        assertEquals(1, notModified.get());
+        assertCounts(cache, 1, 1, 0);
+    }
+
+    @Test
+    public void unmodifiedSourceIsReadFromCacheAfterRestart() throws IOException {
+        serve("create path /a", "\"v1\"");
+        assertEquals("create path /a", read(new RepoinitTextCache(cacheDirectory), url));
+
+        final RepoinitTextCache cache = new RepoinitTextCache(cacheDirectory);
+        assertEquals("create path /a", read(cache, url));
+        assertCounts(cache, 1, 0, 0);
+
+        serve("create path /b", "\"v2\"");
+        assertEquals("create path /b", read(cache, url));
+        assertEquals("create path /b", read(cache, url));
+        assertCounts(cache, 2, 1, 0);
+    }
+
+    @Test
+    public void cachedTextIsUsedIfSourceIsUnreachable() throws IOException {
+        serve("create path /a", "\"v1\"");
+        read(new RepoinitTextCache(cacheDirectory), url);
+        serve(null, null);
+
+        final RepoinitTextCache cache = new RepoinitTextCache(cacheDirectory);
+        assertEquals("create path /a", read(cache, url));
+        assertCounts(cache, 0, 0, 1);
+    }
+
+    @Test
+    public void unreachableSourceFailsWithoutCachedText() throws IOException {
+        serve(null, null);
+        final RepoinitTextCache cache = new RepoinitTextCache(cacheDirectory);
+        assertThrows(IOException.class, () -> cache.open(url));
+        assertCounts(cache, 0, 0, 0);
+    }
+
+    @Test
+    public void truncatedCacheIsIgnored() throws IOException {
+        serve("create path /a", "\"v1\"");
+        read(new RepoinitTextCache(cacheDirectory), url);
+        for (File file : cacheDirectory.listFiles((dir, name) -> name.endsWith(".txt"))) {
+            Files.write(file.toPath(), "create".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final RepoinitTextCache cache = new RepoinitTextCache(cacheDirectory);
+        assertEquals("create path /a", read(cache, url));
+        assertCounts(cache, 0, 1, 0);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.sling.repoinit.parser.impl.RepoInitParserService;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class RepoinitTextProviderTest {
+
+    @Test
+    public void readFailureIsReportedAfterParsing() throws Exception {
+        // fails after the first statement, like a dropped connection
+        final Reader failing = new StringReader("create path /a\n") {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                final int n = super.read(cbuf, off, len);
+                if (n < 0) {
+                    throw new IOException("connection reset");
+                }
+                return n;
+            }
+        };
+        final RepoinitTextProvider.FailureRecordingReader reader =
+                new RepoinitTextProvider.FailureRecordingReader(failing);
+
+        // the parser takes the failure for the end of the text
+        final List<Operation> ops = new RepoInitParserService().parse(reader);
+        assertEquals(1, ops.size());
+        final IOException e = assertThrows(IOException.class, reader::checkFailure);
+        assertEquals("connection reset", e.getMessage());
+    }
+
+    @Test(timeout = 10000)
+    public void droppedConnectionIsReported() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final Thread responder = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    final BufferedReader request = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                    while (!request.readLine().isEmpty()) {
+                        // only the request headers are read
+                    }
+                    // the connection is closed before the second statement is sent
+                    final OutputStream os = socket.getOutputStream();
+                    os.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nf\r\ncreate path /a\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                    os.flush();
+                } catch (IOException e) {
+                    // reported by the reading side
+                }
+            });
+            responder.start();
+
+            final String reference = "raw:http://localhost:" + server.getLocalPort() + "/repoinit.txt";
+            final RepoinitTextProvider.FailureRecordingReader reader = new RepoinitTextProvider.FailureRecordingReader(
+                    new RepoinitTextProvider(null).getRepoinitReader(reference));
+            assertEquals(1, new RepoInitParserService().parse(reader).size());
+            assertThrows(IOException.class, reader::checkFailure);
+            responder.join();
+        }
+    }
+}
@@ -18,21 +18,30 @@
  */
 package org.apache.sling.jcr.repoinit.impl;
 
+import javax.jcr.InvalidItemStateException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
 import org.apache.sling.commons.metrics.MetricsService;
 import org.apache.sling.jcr.repoinit.JcrRepoInitOpsProcessor;
 import org.apache.sling.jcr.repoinit.impl.RetryableOperation.RetryableOperationResult;
 import org.apache.sling.repoinit.parser.RepoInitParser;
+import org.apache.sling.repoinit.parser.operations.Operation;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentMatchers;
+import org.osgi.framework.Constants;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -69,7 +78,7 @@ public class RepositoryInitializerFactoryTest {
     public void handleUncheckedErrorsInOperations() throws RepositoryException {
         doThrow(new RepoInitException("some op failed", new Exception("root cause")))
                 .when(processor)
-                .apply(ArgumentMatchers.any(), ArgumentMatchers.any());
+                .apply(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
         try {
             sut.applyOperations(mock(Session.class), null, null, null);
         } catch (RepositoryException re) {
@@ -85,7 +94,7 @@ public class RepositoryInitializerFactoryTest {
     public void testRetriesWithExceptions() {
         doThrow(new RepoInitException("some op failed", new Exception("root cause")))
                 .when(processor)
-                .apply(ArgumentMatchers.any(), ArgumentMatchers.any());
+                .apply(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
         RetryableOperation retry = new RetryableOperation.Builder()
                 .withBackoffBaseMsec(1)
                 .withMaxRetries(3)
@@ -94,4 +103,41 @@ public class RepositoryInitializerFactoryTest {
         assertEquals(3, retry.retryCount);
         assertFalse(result.isSuccessful());
     }
+
+    @Test
+    public void testRetryResumesFromCheckpoint() {
+        final List<Integer> appliedOperations = new ArrayList<>();
+        final JcrRepoInitOpsProcessor failingOnce = new JcrRepoInitOpsProcessor() {
+            @Override
+            public void apply(Session session, List<Operation> ops) {
+                fail("Expecting the progress to be reported");
+            }
+
+            @Override
+            public void apply(Session session, List<Operation> ops, IntConsumer checkpointListener) {
+                appliedOperations.add(ops.size());
+                if (appliedOperations.size() == 1) {
+                    // the first two operations were saved before the failure
+                    checkpointListener.accept(2);
+                    throw new RepoInitException("some op failed", new InvalidItemStateException("conflict"));
+                }
+            }
+        };
+        context.registerService(JcrRepoInitOpsProcessor.class, failingOnce, Constants.SERVICE_RANKING, 100);
+        final RepositoryInitializerFactory factory = new RepositoryInitializerFactory();
+        context.registerInjectActivateService(factory);
+
+        final List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ops.add(mock(Operation.class));
+        }
+        RetryableOperation retry = new RetryableOperation.Builder()
+                .withBackoffBaseMsec(1)
+                .withMaxRetries(3)
+                .build();
+        RetryableOperationResult result = factory.applyOperationInternal(mock(Session.class), ops, "", null, retry);
+        assertTrue(result.isSuccessful());
+        assertEquals(1, retry.retryCount);
+        assertEquals(Arrays.asList(5, 3), appliedOperations);
+    }
 }
@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.security.Privilege;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.apache.jackrabbit.api.security.authorization.PrivilegeCollection;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.AuthorizableTypeException;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class SessionContextTest {
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_OAK);
+
+    private TestUtil U;
+    private SessionContext sessionContext;
+    private String id;
+
+    @Before
+    public void setup() {
+        U = new TestUtil(context);
+        sessionContext = new SessionContext(U.adminSession);
+        id = "user-" + UUID.randomUUID();
+    }
+
+    @Test
+    public void jackrabbitSessionIsRequired() {
+        final IllegalStateException e =
+                assertThrows(IllegalStateException.class, () -> new SessionContext(mock(Session.class)));
+        assertEquals("A Jackrabbit Session is required", e.getMessage());
+    }
+
+    @Test
+    public void authorizablesAreCachedAcrossVisitors() throws Exception {
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(
+                                "create service user " + id,
+                                "create group " + id + "-group",
+                                "add " + id + " to group " + id + "-group"))
+                .dispatch();
+
+        final Authorizable user = sessionContext.getAuthorizable(id);
+        assertNotNull(user);
+        assertSame(user, sessionContext.getAuthorizable(id, User.class));
+        assertTrue(((Group) sessionContext.getAuthorizable(id + "-group")).isDeclaredMember(user));
+        assertThrows(AuthorizableTypeException.class, () -> sessionContext.getAuthorizable(id, Group.class));
+    }
+
+    @Test
+    public void identicalNamespacesAreNotRegisteredAgain() throws Exception {
+        final String statement = "register namespace (" + id.replace('-', '_') + ") uri:ns:" + id;
+        U.parseAndExecute(statement);
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(statement, "register namespace (jcr) http://www.jcp.org/jcr/1.0"))
+                .dispatch();
+        assertEquals(2, sessionContext.getSkippedNamespaces());
+    }
+
+    @Test
+    public void unchangedNodeTypesAreNotRegisteredAgain() throws Exception {
+        final String prefix = id.replace('-', '_');
+        final String[] statements = {
+            "register nodetypes",
+            "<<===",
+            "<< <" + prefix + "='uri:ns:" + id + "'>",
+            "<< [" + prefix + ":base] > nt:unstructured",
+            "<< [" + prefix + ":mixin] mixin",
+            "===>>"
+        };
+        U.parseAndExecute(statements);
+        sessionContext.enableNodeTypeWorkingSet();
+        new OperationDispatcher(sessionContext, TestUtil.parse(statements)).dispatch();
+        assertEquals(2, sessionContext.getUnchangedNodeTypes());
+    }
+
+    @Test
+    public void privilegesAreRegisteredInAggregateOrder() throws Exception {
+        final String prefix = id.replace('-', '_');
+        sessionContext.enablePrivilegeWorkingSet();
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(
+                                "register privilege " + prefix + "_all with " + prefix + "_read," + prefix + "_write",
+                                "register abstract privilege " + prefix + "_read",
+                                "register privilege " + prefix + "_write"))
+                .dispatch();
+        assertEquals(3, sessionContext.getRegisteredPrivilegeCount());
+    }
+
+    @Test
+    public void referencedAuthorizablesAreResolvedInBulk() throws Exception {
+        U.parseAndExecute("create service user " + id + "-1, " + id + "-2", "create group " + id + "-g");
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(
+                                "create service user " + id + "-1, " + id + "-2, " + id + "-3",
+                                "create group " + id + "-g",
+                                "disable service user " + id + "-2 : \"disabled\""))
+                .dispatch();
+
+        // the new user is cached as missing until it is created, none is looked up on its own
+        assertEquals(0, sessionContext.getAuthorizableLookups());
+        assertEquals(3, sessionContext.getResolvedAuthorizables());
+        assertNotNull(sessionContext.getAuthorizable(id + "-3"));
+
+        // authorizables known to this context are not queried again
+        sessionContext.resolveAuthorizables(Arrays.asList(id + "-1", id + "-3"));
+        assertEquals(3, sessionContext.getResolvedAuthorizables());
+        assertEquals(0, sessionContext.getAuthorizableLookups());
+    }
+
+    @Test
+    public void authorizablesAreResolvedIgnoringCase() throws Exception {
+        U.parseAndExecute("create service user " + id + "-Mixed");
+        sessionContext.resolveAuthorizables(Arrays.asList(id + "-mixed", id + "-MISSING"));
+
+        assertEquals(1, sessionContext.getResolvedAuthorizables());
+        assertNotNull(sessionContext.getAuthorizable(id + "-mixed"));
+        assertNull(sessionContext.getAuthorizable(id + "-missing"));
+        assertEquals(0, sessionContext.getAuthorizableLookups());
+    }
+
+    @Test
+    public void principalsOfCreatedAuthorizablesAreSavedOnce() throws Exception {
+        // nothing to save, so no save is counted
+        assertNull(sessionContext.getPrincipalWithSave(id + "-missing"));
+        assertEquals(0, sessionContext.getForcedSaves());
+
+        new OperationDispatcher(sessionContext, TestUtil.parse("create service user " + id + "-1, " + id + "-2"))
+                .dispatch();
+        assertTrue(U.adminSession.hasPendingChanges());
+
+        // the principals are cached, but saved for the principal lookups of principal-based access control
+        assertNotNull(sessionContext.getPrincipalWithSave(id + "-1"));
+        assertFalse(U.adminSession.hasPendingChanges());
+        assertNotNull(sessionContext.getPrincipalWithSave(id + "-2"));
+        assertEquals(1, sessionContext.getForcedSaves());
+        assertEquals(2, sessionContext.getPrincipalCacheHits());
+
+        // unknown principals save at most once until further authorizables are created
+        assertNull(sessionContext.getPrincipalWithSave(id + "-missing"));
+        assertEquals(1, sessionContext.getForcedSaves());
+    }
+
+    @Test
+    public void principalOfRemovedAuthorizableIsEvicted() throws Exception {
+        final String principalName = "principal-" + id;
+        UserUtil.getUserManager(U.adminSession).createUser(id, null, () -> principalName, null);
+        U.adminSession.save();
+        assertNotNull(sessionContext.getPrincipal(principalName));
+
+        new OperationDispatcher(sessionContext, TestUtil.parse("delete user " + id)).dispatch();
+        assertNull(sessionContext.getPrincipal(principalName));
+    }
+
+    @Test
+    public void privilegeCollectionsAreCached() throws Exception {
+        final PrivilegeCollection collection =
+                sessionContext.privilegeCollectionFromNames(Privilege.JCR_READ, Privilege.JCR_WRITE);
+        assertSame(collection, sessionContext.privilegeCollectionFromNames(Privilege.JCR_WRITE, Privilege.JCR_READ));
+        assertTrue(collection.includes(Privilege.JCR_ADD_CHILD_NODES));
+
+        // registering a privilege invalidates the cache
+        new OperationDispatcher(sessionContext, TestUtil.parse("register privilege " + id.replace('-', '_')))
+                .dispatch();
+        assertNotSame(collection, sessionContext.privilegeCollectionFromNames(Privilege.JCR_READ, Privilege.JCR_WRITE));
+    }
+
+    @Test
+    public void knownAncestorsAreNotLookedUpAgain() throws Exception {
+        final String root = "/" + id;
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(
+                                "create path " + root + "/a/b/c",
+                                "create path " + root + "/a/b/d",
+                                "ensure nodes " + root + "/a(nt:unstructured)/e"))
+                .dispatch();
+
+        // the second statement reuses the first three nodes, the third one the first two
+        assertEquals(5, sessionContext.getPathTrie().getHits());
+        U.assertNodeExists(root + "/a", "nt:unstructured");
+        U.assertNodeExists(root + "/a/b/c");
+        U.assertNodeExists(root + "/a/b/d");
+        U.assertNodeExists(root + "/a/e");
+    }
+
+    @Test
+    public void descendantsOfChangedNodesAreLookedUpAgain() throws Exception {
+        final String root = "/" + id;
+        // separate runs, so that the statements are not merged
+        for (String statement : new String[] {
+            "create path " + root + "/a(sling:Folder)/b", "ensure nodes " + root + "/a(nt:unstructured)"
+        }) {
+            new OperationDispatcher(sessionContext, TestUtil.parse(statement)).dispatch();
+        }
+        assertEquals(2, sessionContext.getPathTrie().getHits());
+
+        // the children of /a are forgotten when its primary type changes
+        new OperationDispatcher(sessionContext, TestUtil.parse("create path " + root + "/a/b")).dispatch();
+        assertEquals(4, sessionContext.getPathTrie().getHits());
+        U.assertNodeExists(root + "/a/b");
+    }
+
+    @Test
+    public void nodesOfRemovedAuthorizablesAreForgotten() throws Exception {
+        new OperationDispatcher(sessionContext, TestUtil.parse("create service user " + id + " with path system/" + id))
+                .dispatch();
+        final String path = sessionContext.getAuthorizable(id).getPath();
+        new OperationDispatcher(sessionContext, TestUtil.parse("create path " + path + "/profile(nt:unstructured)"))
+                .dispatch();
+        new OperationDispatcher(sessionContext, TestUtil.parse("create path /" + id + "/other")).dispatch();
+
+        // the recreated user has the same path, but not the profile node
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(
+                                "delete service user " + id, "create service user " + id + " with path system/" + id))
+                .dispatch();
+        assertEquals(path, sessionContext.getAuthorizable(id).getPath());
+        new OperationDispatcher(sessionContext, TestUtil.parse("create path " + path + "/profile(nt:unstructured)"))
+                .dispatch();
+        U.assertNodeExists(path + "/profile", "nt:unstructured");
+
+        // other nodes are still known
+        final int hits = sessionContext.getPathTrie().getHits();
+        new OperationDispatcher(sessionContext, TestUtil.parse("create path /" + id + "/other")).dispatch();
+        assertEquals(hits + 2, sessionContext.getPathTrie().getHits());
+    }
+
+    @Test
+    public void propertyDefinitionsAreIndexed() throws Exception {
+        final NodeTypeManager ntMgr = U.adminSession.getWorkspace().getNodeTypeManager();
+        final NodeType created = ntMgr.getNodeType("mix:created");
+        final PropertyDefinition definition = sessionContext.getPropertyDefinition(created, "jcr:created");
+        assertNotNull(definition);
+        assertTrue(definition.isAutoCreated());
+        assertSame(definition, sessionContext.getPropertyDefinition(created, "jcr:created"));
+        assertNull(sessionContext.getPropertyDefinition(created, "title"));
+
+        final NodeType unstructured = ntMgr.getNodeType("nt:unstructured");
+        assertNotNull(sessionContext.getPropertyDefinition(unstructured, "*"));
+        assertNull(sessionContext.getPropertyDefinition(unstructured, "title"));
+    }
+
+    @Test
+    public void membershipsAreCoalescedPerGroup() throws Exception {
+        final String group = id + "-group";
+        U.parseAndExecute("create group " + group, "create service user " + id + "-1, " + id + "-2");
+        sessionContext.enableMembershipWorkingSet();
+        new OperationDispatcher(
+                        sessionContext,
+                        TestUtil.parse(
+                                "add " + id + "-1," + id + "-2 to group " + group,
+                                "remove " + id + "-2 from group " + group))
+                .dispatch();
+        assertEquals(1, sessionContext.getUpdatedGroups());
+    }
+
+    @Test
+    public void cacheFollowsDeleteAndRecreate() throws Exception {
+        assertNull(sessionContext.getAuthorizable(id));
+
+        new OperationDispatcher(sessionContext, TestUtil.parse("create service user " + id)).dispatch();
+        final Authorizable created = sessionContext.getAuthorizable(id);
+        assertNotNull(created);
+
+        new OperationDispatcher(
+                        sessionContext, TestUtil.parse("create service user " + id + " with forced path system/other"))
+                .dispatch();
+        final Authorizable recreated = sessionContext.getAuthorizable(id);
+        assertTrue(recreated.getPath().contains("/system/other/"));
+
+        new OperationDispatcher(sessionContext, TestUtil.parse("delete service user " + id)).dispatch();
+        assertNull(sessionContext.getAuthorizable(id));
+        assertNull(UserUtil.getAuthorizable(U.adminSession, id));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.repoinit.impl;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.security.internal.SecurityProviderBuilder;
+import org.apache.jackrabbit.oak.spi.security.ConfigurationParameters;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.jackrabbit.oak.spi.security.user.util.PasswordUtil;
+import org.apache.sling.repoinit.parser.operations.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the bulk creation of users with cleartext passwords with the creation of users from
+ * already encoded passwords, for different numbers of configured hash iterations. Oak hashes the
+ * passwords of both when creating the users, so the cost is governed by the configured iterations.
+ * <p>
+ * Run with {@code java -cp <test classpath> org.apache.sling.jcr.repoinit.impl.UserCreationBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserCreationBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+
+    @Param({"100"})
+    public int users;
+
+    /** The number of hash iterations configured in Oak, and used for the encoded passwords */
+    @Param({"1000", "10000"})
+    public int iterations;
+
+    private Session session;
+    private List<Operation> cleartext;
+    private List<Operation> encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final ConfigurationParameters userConfig =
+                ConfigurationParameters.of(UserConstants.PARAM_PASSWORD_HASH_ITERATIONS, iterations);
+        final SecurityProvider securityProvider = SecurityProviderBuilder.newBuilder()
+                .with(ConfigurationParameters.of(UserConfiguration.NAME, userConfig))
+                .build();
+        final Repository repository = new Jcr(new Oak()).with(securityProvider).createRepository();
+        session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+
+        // the hash is created once, like it would be when provisioning the scripts
+        final String hash = PasswordUtil.buildPasswordHash(
+                PASSWORD, PasswordUtil.DEFAULT_ALGORITHM, PasswordUtil.DEFAULT_SALT_SIZE, iterations);
+        final String encoding = hash.substring(1, hash.indexOf('}'));
+        final String encodedPassword = "{" + encoding + "} " + hash.substring(hash.indexOf('}') + 1);
+        final List<String> cleartextLines = new ArrayList<>(users);
+        final List<String> encodedLines = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            cleartextLines.add("create user bench-user-" + i + " with password " + PASSWORD);
+            encodedLines.add("create user bench-user-" + i + " with password " + encodedPassword);
+        }
+        cleartext = TestUtil.parse(cleartextLines.toArray(new String[0]));
+        encoded = TestUtil.parse(encodedLines.toArray(new String[0]));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        session.logout();
+    }
+
+    @Benchmark
+    public void cleartextPasswords() throws RepositoryException {
+        apply(cleartext);
+    }
+
+    @Benchmark
+    public void encodedPasswords() throws RepositoryException {
+        apply(encoded);
+    }
+
+    private void apply(List<Operation> ops) throws RepositoryException {
+        new OperationDispatcher(session, ops).dispatch();
+        // discard the users, so that the next invocation creates them again
+        session.refresh(false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                        .include(UserCreationBenchmark.class.getSimpleName())
+                        .build())
+                .run();
+    }
+}